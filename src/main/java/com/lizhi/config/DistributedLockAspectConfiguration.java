@@ -1,7 +1,11 @@
 package com.lizhi.config;
 
 import com.lizhi.service.IDistributedLock;
+import com.lizhi.service.IMultiDistributedLock;
 import com.lizhi.service.impl.RedisDistributedLock;
+import com.lizhi.service.impl.RedisFairLock;
+import com.lizhi.service.impl.RedisReadWriteLock;
+import com.lizhi.service.impl.RedisReentrantLock;
 import com.lizhi.utils.RedisLock;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
@@ -13,11 +17,22 @@ import org.slf4j.LoggerFactory;
 import org.springframework.boot.autoconfigure.AutoConfigureAfter;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.DefaultParameterNameDiscoverer;
+import org.springframework.core.ParameterNameDiscoverer;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.SpelCompilerMode;
+import org.springframework.expression.spel.SpelParserConfiguration;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
 import org.springframework.util.StringUtils;
 
 import javax.annotation.Resource;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author https://github.com/lizhixiong1994
@@ -32,9 +47,31 @@ public class DistributedLockAspectConfiguration {
 
     private final Logger logger = LoggerFactory.getLogger(DistributedLockAspectConfiguration.class);
 
+    /**
+     * MIXED：表达式执行几次后编译成字节码，编译失败自动退回解释执行
+     */
+    private static final SpelExpressionParser EXPRESSION_PARSER = new SpelExpressionParser(
+            new SpelParserConfiguration(SpelCompilerMode.MIXED, DistributedLockAspectConfiguration.class.getClassLoader()));
+
+    private static final ParameterNameDiscoverer PARAMETER_NAME_DISCOVERER = new DefaultParameterNameDiscoverer();
+
+    private final Map<Method, LockMetadata> metadataCache = new ConcurrentHashMap<>();
+
     @Resource
     private IDistributedLock distributedLock;
 
+    @Resource
+    private RedisReentrantLock reentrantLock;
+
+    @Resource
+    private RedisReadWriteLock readWriteLock;
+
+    @Resource
+    private RedisFairLock fairLock;
+
+    @Resource
+    private IMultiDistributedLock multiLock;
+
     @Pointcut("@annotation(com.lizhi.utils.RedisLock)")
     private void lockPoint(){
 
@@ -43,29 +80,160 @@ public class DistributedLockAspectConfiguration {
     @Around("lockPoint()")
     public Object around(ProceedingJoinPoint pjp) throws Throwable{
         Method method = ((MethodSignature) pjp.getSignature()).getMethod();
-        RedisLock redisLock = method.getAnnotation(RedisLock.class);
-        String key = redisLock.value();
-        if(StringUtils.isEmpty(key)){
-            Object[] args = pjp.getArgs();
-            key = Arrays.toString(args);
+        LockMetadata metadata = metadataCache.get(method);
+        if (metadata == null) {
+            metadata = metadataCache.computeIfAbsent(method, this::resolveMetadata);
         }
-        int retryTimes = redisLock.action().equals(RedisLock.LockFailAction.CONTINUE) ? redisLock.retryTimes() : 0;
-        boolean lock = distributedLock.lock(key, redisLock.keepMills(), retryTimes, redisLock.sleepMills());
+        RedisLock redisLock = metadata.redisLock;
+        if (metadata.keysExpressions != null) {
+            return aroundMulti(pjp, metadata);
+        }
+        String key = metadata.key(pjp.getArgs());
+        IDistributedLock distributedLock = metadata.distributedLock;
+        boolean lock = metadata.timeoutMillis >= 0
+                ? distributedLock.tryLock(key, redisLock.keepMills(), metadata.timeoutMillis, redisLock.sleepMills(), redisLock.autoRenew())
+                : distributedLock.lock(key, redisLock.keepMills(), metadata.retryTimes, redisLock.sleepMills(), redisLock.autoRenew());
         if(!lock) {
-            logger.debug("get lock failed : " + key);
+            logger.debug("get lock failed : {}", key);
             return null;
         }
 
         //得到锁,执行方法，释放锁
-        logger.debug("get lock success : " + key);
+        logger.debug("get lock success : {}", key);
         try {
             return pjp.proceed();
         } catch (Exception e) {
             logger.error("execute locked method occured an exception", e);
         } finally {
             boolean releaseResult = distributedLock.releaseLock(key);
-            logger.debug("release lock : " + key + (releaseResult ? " success" : " failed"));
+            logger.debug("release lock : {} {}", key, releaseResult ? "success" : "failed");
+        }
+        return null;
+    }
+
+    private Object aroundMulti(ProceedingJoinPoint pjp, LockMetadata metadata) throws Throwable {
+        RedisLock redisLock = metadata.redisLock;
+        List<String> keys = metadata.keys(pjp.getArgs());
+        boolean lock = metadata.timeoutMillis >= 0
+                ? multiLock.tryLock(keys, redisLock.keepMills(), metadata.timeoutMillis, redisLock.sleepMills(), redisLock.autoRenew())
+                : multiLock.lock(keys, redisLock.keepMills(), metadata.retryTimes, redisLock.sleepMills(), redisLock.autoRenew());
+        if(!lock) {
+            logger.debug("get lock failed : {}", keys);
+            return null;
+        }
+
+        logger.debug("get lock success : {}", keys);
+        try {
+            return pjp.proceed();
+        } catch (Exception e) {
+            logger.error("execute locked method occured an exception", e);
+        } finally {
+            boolean releaseResult = multiLock.releaseLock(keys);
+            logger.debug("release lock : {} {}", keys, releaseResult ? "success" : "failed");
         }
         return null;
     }
+
+    /**
+     * 每个方法只解析一次：注解、使用的锁、编译好的key表达式
+     */
+    private LockMetadata resolveMetadata(Method method) {
+        RedisLock redisLock = method.getAnnotation(RedisLock.class);
+        int retryTimes = redisLock.action().equals(RedisLock.LockFailAction.CONTINUE) ? redisLock.retryTimes() : 0;
+        long timeoutMillis = redisLock.action().equals(RedisLock.LockFailAction.CONTINUE) ? redisLock.timeoutMills() : -1;
+        Expression keyExpression = null;
+        Expression[] keysExpressions = null;
+        String[] parameterNames = null;
+        if (redisLock.keys().length > 0) {
+            keysExpressions = new Expression[redisLock.keys().length];
+            for (int i = 0; i < keysExpressions.length; i++) {
+                keysExpressions[i] = EXPRESSION_PARSER.parseExpression(redisLock.keys()[i]);
+            }
+            parameterNames = PARAMETER_NAME_DISCOVERER.getParameterNames(method);
+        } else if (!StringUtils.isEmpty(redisLock.key())) {
+            keyExpression = EXPRESSION_PARSER.parseExpression(redisLock.key());
+            parameterNames = PARAMETER_NAME_DISCOVERER.getParameterNames(method);
+        }
+        return new LockMetadata(redisLock, lockFor(redisLock), retryTimes, timeoutMillis, keyExpression, keysExpressions, parameterNames);
+    }
+
+    private IDistributedLock lockFor(RedisLock redisLock) {
+        switch (redisLock.mode()) {
+            case READ:
+                return readWriteLock.readLock();
+            case WRITE:
+                return readWriteLock.writeLock();
+            default:
+                if (redisLock.fair()) {
+                    return fairLock;
+                }
+                return redisLock.reentrant() ? reentrantLock : distributedLock;
+        }
+    }
+
+    private static final class LockMetadata {
+
+        private final RedisLock redisLock;
+
+        private final IDistributedLock distributedLock;
+
+        private final int retryTimes;
+
+        /**
+         * 不小于0时按时限重试，忽略retryTimes
+         */
+        private final long timeoutMillis;
+
+        private final Expression keyExpression;
+
+        private final Expression[] keysExpressions;
+
+        private final String[] parameterNames;
+
+        private LockMetadata(RedisLock redisLock, IDistributedLock distributedLock, int retryTimes, long timeoutMillis,
+                             Expression keyExpression, Expression[] keysExpressions, String[] parameterNames) {
+            this.redisLock = redisLock;
+            this.distributedLock = distributedLock;
+            this.retryTimes = retryTimes;
+            this.timeoutMillis = timeoutMillis;
+            this.keyExpression = keyExpression;
+            this.keysExpressions = keysExpressions;
+            this.parameterNames = parameterNames;
+        }
+
+        private StandardEvaluationContext context(Object[] args) {
+            StandardEvaluationContext context = new StandardEvaluationContext();
+            for (int i = 0; i < args.length; i++) {
+                if (parameterNames != null && i < parameterNames.length) {
+                    context.setVariable(parameterNames[i], args[i]);
+                }
+                context.setVariable("p" + i, args[i]);
+                context.setVariable("a" + i, args[i]);
+            }
+            return context;
+        }
+
+        private List<String> keys(Object[] args) {
+            StandardEvaluationContext context = context(args);
+            List<String> keys = new ArrayList<>(keysExpressions.length);
+            for (Expression expression : keysExpressions) {
+                keys.add(expression.getValue(context, String.class));
+            }
+            return keys;
+        }
+
+        /**
+         * key表达式 > value > 参数拼接（value设为空时，兼容旧用法）
+         */
+        private String key(Object[] args) {
+            if (keyExpression != null) {
+                return keyExpression.getValue(context(args), String.class);
+            }
+            String key = redisLock.value();
+            if(StringUtils.isEmpty(key)){
+                key = Arrays.toString(args);
+            }
+            return key;
+        }
+    }
 }
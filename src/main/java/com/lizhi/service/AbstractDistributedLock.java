@@ -30,4 +30,9 @@ public abstract class AbstractDistributedLock implements IDistributedLock {
     public boolean lock(String key, long expire, int retryTimes) {
         return lock(key, expire, retryTimes, SLEEP_MILLIS);
     }
+
+    @Override
+    public boolean tryLock(String key, long expire, long waitMillis) {
+        return tryLock(key, expire, waitMillis, SLEEP_MILLIS, false);
+    }
 }
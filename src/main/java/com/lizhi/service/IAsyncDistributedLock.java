@@ -0,0 +1,20 @@
+package com.lizhi.service;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 不阻塞调用线程的分布式锁
+ */
+public interface IAsyncDistributedLock {
+
+    /**
+     * 异步加锁，重试由共享的定时线程或锁释放通知驱动，不占用调用线程
+     * future在加锁线程里完成，后续耗时操作请用xxxAsync切换到自己的线程池
+     *
+     * @param key           keyname
+     * @param leaseMillis   失效时间ms
+     * @param timeoutMillis 最长等待时间ms，超时后future以TimeoutException异常完成
+     * @return 锁；取消future即放弃等待
+     */
+    CompletableFuture<LockHandle> lockAsync(String key, long leaseMillis, long timeoutMillis);
+}
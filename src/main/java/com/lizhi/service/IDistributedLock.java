@@ -57,6 +57,36 @@ public interface IDistributedLock {
      */
     boolean lock(String key, long expire, int retryTimes, long sleepMillis);
 
+    /**
+     * @param key         keyname
+     * @param expire      失效时间ms，autoRenew时为租期
+     * @param retryTimes  重试次数
+     * @param sleepMillis 重试间隔ms
+     * @param autoRenew   持锁期间自动续期，直到releaseLock
+     * @return 成功：true 失败：false
+     */
+    boolean lock(String key, long expire, int retryTimes, long sleepMillis, boolean autoRenew);
+
+    /**
+     * 按时限等待，到期还没拿到就放弃；重试间隔为SLEEP_MILLIS上下随机，锁释放时提前重试
+     *
+     * @param key        keyname
+     * @param expire     失效时间ms
+     * @param waitMillis 最长等待时间ms，0只尝试一次
+     * @return 成功：true 失败：false
+     */
+    boolean tryLock(String key, long expire, long waitMillis);
+
+    /**
+     * @param key         keyname
+     * @param expire      失效时间ms，autoRenew时为租期
+     * @param waitMillis  最长等待时间ms，0只尝试一次，负数不限时
+     * @param sleepMillis 平均重试间隔ms，实际间隔上下随机
+     * @param autoRenew   持锁期间自动续期，直到releaseLock
+     * @return 成功：true 失败：false
+     */
+    boolean tryLock(String key, long expire, long waitMillis, long sleepMillis, boolean autoRenew);
+
     /**
      * @param key         keyname
      */
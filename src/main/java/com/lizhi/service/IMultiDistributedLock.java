@@ -0,0 +1,46 @@
+package com.lizhi.service;
+
+import java.util.Collection;
+
+/**
+ * 同时锁多个key，要么全部拿到，要么一个都不拿
+ */
+public interface IMultiDistributedLock {
+
+    /**
+     * @param keys        keyname
+     * @param expire      失效时间ms
+     * @param retryTimes  重试次数
+     * @param sleepMillis 重试间隔ms
+     * @return 成功：true 失败：false
+     */
+    boolean lock(Collection<String> keys, long expire, int retryTimes, long sleepMillis);
+
+    /**
+     * @param keys        keyname
+     * @param expire      失效时间ms，autoRenew时为租期
+     * @param retryTimes  重试次数
+     * @param sleepMillis 重试间隔ms
+     * @param autoRenew   持锁期间自动续期，直到releaseLock
+     * @return 成功：true 失败：false
+     */
+    boolean lock(Collection<String> keys, long expire, int retryTimes, long sleepMillis, boolean autoRenew);
+
+    /**
+     * 按时限等待，到期还没拿到全部key就放弃
+     *
+     * @param keys        keyname
+     * @param expire      失效时间ms，autoRenew时为租期
+     * @param waitMillis  最长等待时间ms，0只尝试一次，负数不限时
+     * @param sleepMillis 平均重试间隔ms，实际间隔上下随机
+     * @param autoRenew   持锁期间自动续期，直到releaseLock
+     * @return 成功：true 失败：false
+     */
+    boolean tryLock(Collection<String> keys, long expire, long waitMillis, long sleepMillis, boolean autoRenew);
+
+    /**
+     * @param keys keyname
+     * @return 全部释放或者本线程没有持有任何key：true
+     */
+    boolean releaseLock(Collection<String> keys);
+}
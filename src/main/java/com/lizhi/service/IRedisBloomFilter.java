@@ -23,4 +23,13 @@ public interface IRedisBloomFilter<E> {
     boolean contains(String key, E element);
 
     boolean containsAll(String key, Collection<? extends E> c);
+
+    /**
+     * 批量判断，按集合迭代顺序返回每个元素的结果
+     *
+     * @param key 键
+     * @param c   元素
+     * @return 与c迭代顺序一一对应，true：可能存在 false：一定不存在
+     */
+    boolean[] containsEach(String key, Collection<? extends E> c);
 }
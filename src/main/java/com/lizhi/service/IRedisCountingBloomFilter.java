@@ -0,0 +1,28 @@
+package com.lizhi.service;
+
+import java.util.Collection;
+
+/**
+ * 支持删除的布隆过滤（Counting Bloom Filter）
+ *
+ * @param <E>
+ */
+public interface IRedisCountingBloomFilter<E> extends IRedisBloomFilter<E> {
+
+    /**
+     * 删除元素，只能删除之前add过的元素，否则会误删其他元素
+     *
+     * @param key     键
+     * @param element 元素
+     * @return true：已删除 false：元素不存在
+     */
+    boolean remove(String key, E element);
+
+    /**
+     * 批量删除
+     *
+     * @param key 键
+     * @param c   元素
+     */
+    void removeAll(String key, Collection<? extends E> c);
+}
@@ -0,0 +1,59 @@
+package com.lizhi.service;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 布谷鸟过滤（Cuckoo Filter），支持删除，查询只需读取两个桶
+ *
+ * @param <E>
+ */
+public interface IRedisCuckooFilter<E> {
+
+    void setRedisService(IRedisService redisService);
+
+    void init(String key, long expireTime, TimeUnit timeUnit);
+
+    void init(String key);
+
+    /**
+     * @param key     键
+     * @param element 元素
+     * @return true：成功 false：过滤器已满
+     */
+    boolean add(String key, E element);
+
+    /**
+     * @param key 键
+     * @param c   元素
+     * @return 与c迭代顺序一一对应，true：成功 false：过滤器已满
+     */
+    boolean[] addAll(String key, Collection<? extends E> c);
+
+    boolean contains(String key, E element);
+
+    boolean containsAll(String key, Collection<? extends E> c);
+
+    /**
+     * @param key 键
+     * @param c   元素
+     * @return 与c迭代顺序一一对应，true：可能存在 false：一定不存在
+     */
+    boolean[] containsEach(String key, Collection<? extends E> c);
+
+    /**
+     * 删除元素，只能删除之前add过的元素，否则可能误删指纹相同的其他元素
+     *
+     * @param key     键
+     * @param element 元素
+     * @return true：已删除 false：元素不存在
+     */
+    boolean remove(String key, E element);
+
+    /**
+     * @param key 键
+     * @param c   元素
+     * @return 与c迭代顺序一一对应，true：已删除 false：元素不存在
+     */
+    boolean[] removeAll(String key, Collection<? extends E> c);
+}
@@ -1,6 +1,9 @@
 package com.lizhi.service;
 
+import com.lizhi.utils.BloomFilterStatsListener;
+import com.lizhi.utils.HashStrategy;
 import com.lizhi.utils.PipelineTemplete;
+import org.springframework.data.redis.connection.MessageListener;
 
 import java.util.List;
 import java.util.Map;
@@ -139,14 +142,63 @@ public interface IRedisService {
      */
     void sendMessage(String channel, String message);
 
+    /**
+     * pub/sub
+     * 订阅频道，所有订阅共用一个监听容器（一条订阅连接）
+     *
+     * @param listener 监听器
+     * @param channel  频道
+     */
+    void subscribe(MessageListener listener, String channel);
+
+    /**
+     * pub/sub
+     * 取消订阅
+     *
+     * @param listener 监听器
+     * @param channel  频道
+     */
+    void unsubscribe(MessageListener listener, String channel);
+
+    /**
+     * pub/sub
+     * 按模式订阅（PSUBSCRIBE），与subscribe共用同一个监听容器
+     *
+     * @param listener 监听器
+     * @param pattern  频道模式，如 prefix*
+     */
+    void psubscribe(MessageListener listener, String pattern);
+
+    /**
+     * pub/sub
+     * 取消模式订阅
+     *
+     * @param listener 监听器
+     * @param pattern  频道模式
+     */
+    void punsubscribe(MessageListener listener, String pattern);
+
     /**
      * 获取BloomFilter工具
      *
+     * 位数组长度 m = ceil(kn/ln2)，单个key最大 2^32 位（redis字符串上限512MB），超过时抛出IllegalArgumentException，
+     * 更大的过滤器请使用getShardedBloomFilter
+     *
      * @param falsePositiveProbability 容错率 默认0.0001
      * @param expectedNumberOfElements 容量   默认600000
      * @return
      */
-    IRedisBloomFilter getBloomFilter(double falsePositiveProbability, int expectedNumberOfElements);
+    IRedisBloomFilter getBloomFilter(double falsePositiveProbability, long expectedNumberOfElements);
+
+    /**
+     * 获取BloomFilter工具
+     *
+     * @param falsePositiveProbability 容错率
+     * @param expectedNumberOfElements 容量
+     * @param hashStrategy             哈希策略，默认Murmur3HashStrategy，读写旧版本创建的过滤器时使用Md5HashStrategy
+     * @return
+     */
+    IRedisBloomFilter getBloomFilter(double falsePositiveProbability, long expectedNumberOfElements, HashStrategy hashStrategy);
 
     /**
      * 获取BloomFilter工具
@@ -155,6 +207,120 @@ public interface IRedisService {
      */
     IRedisBloomFilter getBloomFilter();
 
+    /**
+     * 获取lua脚本实现的BloomFilter工具
+     * 每次add/contains只有一次EVALSHA调用，在redis上原子执行，集群模式下同样可用
+     *
+     * @param falsePositiveProbability 容错率 默认0.0001
+     * @param expectedNumberOfElements 容量   默认600000
+     * @return
+     */
+    IRedisBloomFilter getLuaBloomFilter(double falsePositiveProbability, long expectedNumberOfElements);
+
+    /**
+     * 获取lua脚本实现的BloomFilter工具
+     *
+     * @return
+     */
+    IRedisBloomFilter getLuaBloomFilter();
+
+    /**
+     * 获取带本地镜像的BloomFilter工具，适用于读多写少的过滤器
+     * contains直接读本地的位图副本，不访问redis；写操作仍然写redis
+     * 本地副本按refreshInterval定时全量刷新，收到刷新通知时立即刷新
+     * 返回的实例为MirroredRedisBloomFilter，可调用refresh/notifyUpdated/shutdown
+     *
+     * @param falsePositiveProbability 容错率
+     * @param expectedNumberOfElements 容量
+     * @param refreshInterval          刷新间隔
+     * @param timeUnit                 单位
+     * @return
+     */
+    IRedisBloomFilter getMirroredBloomFilter(double falsePositiveProbability, long expectedNumberOfElements, long refreshInterval, TimeUnit timeUnit);
+
+    /**
+     * 获取写缓冲的BloomFilter工具，适用于写入量大、可以容忍写入延迟的场景
+     * add只写本地缓冲区，后台线程按flushInterval或缓冲数量阈值批量写入redis
+     * 返回的实例为BufferedRedisBloomFilter，可调用flush/shutdown
+     *
+     * @param falsePositiveProbability 容错率
+     * @param expectedNumberOfElements 容量
+     * @param flushInterval            flush间隔
+     * @param timeUnit                 单位
+     * @return
+     */
+    IRedisBloomFilter getBufferedBloomFilter(double falsePositiveProbability, long expectedNumberOfElements, long flushInterval, TimeUnit timeUnit);
+
+    /**
+     * 获取可自动扩容的BloomFilter工具
+     * 插入数超过容量时自动新增一层更大、容错率更低的位图，总容错率始终不超过falsePositiveProbability
+     *
+     * @param falsePositiveProbability 总容错率
+     * @param initialCapacity          第一层的容量，之后每层翻倍
+     * @return
+     */
+    IRedisBloomFilter getScalableBloomFilter(double falsePositiveProbability, int initialCapacity);
+
+    /**
+     * 获取分片的BloomFilter工具，位空间平均分到numberOfShards个子key上，集群模式下分布在不同节点
+     * 每个分片使用lua脚本实现，单个元素的add/contains只访问一个分片、一次调用
+     *
+     * @param falsePositiveProbability 容错率
+     * @param expectedNumberOfElements 总容量
+     * @param numberOfShards           分片数
+     * @return
+     */
+    IRedisBloomFilter getShardedBloomFilter(double falsePositiveProbability, long expectedNumberOfElements, int numberOfShards);
+
+    /**
+     * 获取支持删除的计数BloomFilter工具，每个位置为4位计数器，内存是普通BloomFilter的4倍，需要redis 3.2+
+     *
+     * @param falsePositiveProbability 容错率
+     * @param expectedNumberOfElements 容量
+     * @return
+     */
+    IRedisCountingBloomFilter getCountingBloomFilter(double falsePositiveProbability, long expectedNumberOfElements);
+
+    /**
+     * 获取滑动窗口BloomFilter工具，用于在一个时间窗口内去重，过期的代由redis自动删除
+     *
+     * @param falsePositiveProbability 每一代的容错率
+     * @param expectedNumberOfElements 每一代的容量
+     * @param window                   窗口长度
+     * @param timeUnit                 单位
+     * @param generations              窗口内的代数，越大内存越省、contains检查的key越多
+     * @return
+     */
+    IRedisBloomFilter getWindowedBloomFilter(double falsePositiveProbability, long expectedNumberOfElements, long window, TimeUnit timeUnit, int generations);
+
+    /**
+     * 获取CuckooFilter工具，支持删除，查询只读两个桶，低容错率下比BloomFilter更省内存，需要redis 3.2+
+     *
+     * @param capacity 容量
+     * @return
+     */
+    IRedisCuckooFilter getCuckooFilter(long capacity);
+
+    /**
+     * 获取带饱和度监控的BloomFilter工具，定时BITCOUNT估算元素数和实际容错率并回调listener
+     * 返回的实例为MonitoredRedisBloomFilter，可调用enableRotation在容错率超标时自动重建为更大的过滤器
+     *
+     * @param falsePositiveProbability 容错率
+     * @param expectedNumberOfElements 容量
+     * @param checkInterval            检查间隔
+     * @param timeUnit                 单位
+     * @param listener                 统计回调
+     * @return
+     */
+    IRedisBloomFilter getMonitoredBloomFilter(double falsePositiveProbability, long expectedNumberOfElements, long checkInterval, TimeUnit timeUnit, BloomFilterStatsListener listener);
+
+    /**
+     * 获取CuckooFilter工具
+     *
+     * @return
+     */
+    IRedisCuckooFilter getCuckooFilter();
+
     /**
      * setBit Boolean setBit(K key, long offset, boolean value);
      * 对 key 所储存的字符串值，设置或清除指定偏移量上的位(bit)
@@ -190,6 +356,43 @@ public interface IRedisService {
      */
     boolean getBit(String key, long index);
 
+    /**
+     * 批量位操作，所有下标在一个管道中发送，只需一次网络往返
+     *
+     * @param key     键
+     * @param indexes 下标
+     * @param value   false = 0，true = 1
+     * @return true：成功 false：失败
+     */
+    boolean setBits(String key, long[] indexes, boolean value);
+
+    /**
+     * 批量位操作，所有下标在一个管道中发送，只需一次网络往返
+     *
+     * @param key     键
+     * @param indexes 下标
+     * @return 与indexes一一对应的位值
+     */
+    boolean[] getBits(String key, long[] indexes);
+
+    /**
+     * 获取字符串值的子串，用于分段读取位图
+     *
+     * @param key   键
+     * @param start 起始字节（包含）
+     * @param end   结束字节（包含）
+     * @return 原始字节，key不存在时为空数组
+     */
+    byte[] getRange(String key, long start, long end);
+
+    /**
+     * 统计位图中为1的位数
+     *
+     * @param key 键
+     * @return 置位数，key不存在时为0
+     */
+    long bitCount(String key);
+
     /**
      * 失效时间
      *
@@ -233,7 +436,45 @@ public interface IRedisService {
      */
     List<Object>  pipeline(PipelineTemplete pipelineTemplete);
 
+    /**
+     * 执行lua脚本
+     * 按脚本的SHA1执行EVALSHA，只有redis上还没有该脚本时才发送完整脚本（EVAL），之后的调用只传SHA1
+     * 集群模式和单机模式均可使用，集群模式下所有key必须在同一个slot
+     *
+     * @param script 脚本
+     * @param keys   KEYS
+     * @param args   ARGV
+     * @return 脚本返回值：整数为Long，字符串为String，table为List
+     */
+    Object eval(String script, List<String> keys, List<String> args);
+
+    /**
+     * @return 集群模式（JedisCluster）：true，单机模式：false
+     */
+    boolean isCluster();
+
      boolean redisLock(final String key, String value, long expireTime, TimeUnit timeUnit);
 
      boolean releaseLock(String key, String value);
+
+    /**
+     * 释放锁，释放成功后在同一个脚本里向channel发布消息（消息内容为key），等待该锁的客户端收到后立即重试
+     *
+     * @param key     锁
+     * @param value   加锁时的value
+     * @param channel 通知频道
+     * @return 锁在自己手上并已删除：true
+     */
+     boolean releaseLock(String key, String value, String channel);
+
+    /**
+     * 批量续期锁，只续期仍在自己手上的锁（value相同，可重入锁为hash中存在该持有者）
+     * 单机模式一次管道发送，集群模式逐个执行
+     *
+     * @param keys         锁
+     * @param values       加锁时的value
+     * @param expireMillis 新的有效期ms
+     * @return 每把锁是否续期成功，false表示锁已过期或被别人持有
+     */
+     boolean[] renewLocks(String[] keys, String[] values, long[] expireMillis);
 }
@@ -0,0 +1,25 @@
+package com.lizhi.service;
+
+/**
+ * 异步加锁拿到的锁
+ * 自己保存本次加锁的token，不依赖ThreadLocal，可以在任意线程释放
+ */
+public interface LockHandle {
+
+    /**
+     * @return keyname
+     */
+    String getKey();
+
+    /**
+     * @return true：锁在手上  false：锁已过期或已释放
+     */
+    boolean isHeld();
+
+    /**
+     * 释放锁，多次调用只有第一次访问redis
+     *
+     * @return 成功：true 失败：false（锁已经过期或不在自己手上）
+     */
+    boolean release();
+}
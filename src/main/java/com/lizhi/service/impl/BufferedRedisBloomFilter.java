@@ -0,0 +1,223 @@
+package com.lizhi.service.impl;
+
+import com.lizhi.utils.HashStrategy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 写缓冲（write-behind）的布隆过滤
+ * <p>
+ * add只把下标放进本地缓冲区后立即返回，后台线程按时间间隔或缓冲数量阈值把缓冲区写入redis，
+ * 同一个下标只会写一次，每个管道最多batchSize个SETBIT。也可以调用 {@link #flush()} 立即写入。
+ * <p>
+ * 本节点的contains会把缓冲区中尚未写入的下标视为已设置；其他节点要等到下一次flush之后才能看到新元素。
+ * flush写入成功后才把下标移出缓冲区，写入失败的下标留在缓冲区，下一次flush重试。
+ * <p>
+ * getBufferedBloomFilter返回的实例已经调用过start；自己new出来的实例需要调用start才会定时flush，
+ * 未start时达到缓冲阈值会在调用add的线程里同步flush。
+ *
+ * @param <E>
+ */
+public class BufferedRedisBloomFilter<E> extends RedisBloomFilter<E> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BufferedRedisBloomFilter.class);
+
+    /**
+     * key -> 尚未写入redis的下标
+     */
+    private final Map<String, Set<Long>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * 上次flush后缓冲的下标数（含重复），用于判断是否达到阈值
+     */
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    /**
+     * 缓冲的下标数达到该值时触发flush
+     */
+    private volatile int flushThreshold = 100000;
+
+    private ScheduledExecutorService scheduler;
+
+    public BufferedRedisBloomFilter() {
+        super();
+    }
+
+    public BufferedRedisBloomFilter(long m, long n, int k) {
+        super(m, n, k);
+    }
+
+    public BufferedRedisBloomFilter(long m, long n, int k, HashStrategy hashStrategy) {
+        super(m, n, k, hashStrategy);
+    }
+
+    public BufferedRedisBloomFilter(double falsePositiveProbability, long expectedNumberOfElements) {
+        super(falsePositiveProbability, expectedNumberOfElements);
+    }
+
+    public BufferedRedisBloomFilter(double falsePositiveProbability, long expectedNumberOfElements, HashStrategy hashStrategy) {
+        super(falsePositiveProbability, expectedNumberOfElements, hashStrategy);
+    }
+
+    /**
+     * 开始定时flush，需在setRedisService之后调用
+     *
+     * @param flushInterval flush间隔，即其他节点可见的最大延迟
+     * @param timeUnit      单位
+     */
+    public synchronized void start(long flushInterval, TimeUnit timeUnit) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "bloom-filter-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval, timeUnit);
+    }
+
+    /**
+     * 停止定时flush，并把缓冲区中剩余的下标写入redis
+     */
+    public synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+        flush();
+    }
+
+    /**
+     * 把缓冲区中的下标写入redis
+     *
+     * @return true：全部写入成功 false：有key写入失败，其下标仍在缓冲区
+     */
+    public synchronized boolean flush() {
+        pendingCount.set(0);
+        boolean success = true;
+        for (Map.Entry<String, Set<Long>> entry : pending.entrySet()) {
+            String key = entry.getKey();
+            Set<Long> indexes = entry.getValue();
+            // 先复制，写入redis之前下标一直留在缓冲区，contains不会漏掉
+            long[] sorted = new long[indexes.size()];
+            int length = 0;
+            for (Long index : indexes) {
+                if (length == sorted.length) {// 复制期间又加入了新的下标，下次flush再写
+                    break;
+                }
+                sorted[length++] = index;
+            }
+            sorted = Arrays.copyOf(sorted, length);
+            Arrays.sort(sorted);
+            for (int from = 0; from < sorted.length; from += getBatchSize()) {
+                long[] batch = Arrays.copyOfRange(sorted, from, Math.min(from + getBatchSize(), sorted.length));
+                if (!getRedisService().setBits(key, batch, true)) {
+                    LOGGER.error("Failed to flush bloom filter, key:[{}], will retry {} bits", key, sorted.length - from);
+                    success = false;
+                    break;
+                }
+                for (long index : batch) {
+                    indexes.remove(index);
+                }
+            }
+            // compute与buffer互斥，移除空集合时不会丢掉刚加入的下标
+            pending.computeIfPresent(key, (k, set) -> set.isEmpty() ? null : set);
+        }
+        return success;
+    }
+
+    @Override
+    protected boolean setBits(String key, long[] indexes) {
+        buffer(key, indexes);
+        if (pendingCount.addAndGet(indexes.length) >= flushThreshold) {
+            pendingCount.set(0);
+            ScheduledExecutorService scheduler = this.scheduler;
+            if (scheduler != null) {
+                scheduler.execute(this::flushQuietly);
+            } else {
+                flushQuietly();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected boolean allSet(String key, long[] indexes) {
+        long[] unbuffered = unbuffered(pending.get(key), indexes);
+        return unbuffered.length == 0 || super.allSet(key, unbuffered);
+    }
+
+    @Override
+    protected boolean[] allSet(String key, long[][] hashed, int from, int to) {
+        Set<Long> buffered = pending.get(key);
+        long[][] unbuffered = new long[to - from][];
+        for (int i = from; i < to; i++) {
+            unbuffered[i - from] = unbuffered(buffered, hashed[i]);
+        }
+        return super.allSet(key, unbuffered, 0, unbuffered.length);
+    }
+
+    /**
+     * 放入缓冲区，compute保证与flush中移除空集合互斥，下标不会丢失
+     */
+    private void buffer(String key, long[] indexes) {
+        pending.compute(key, (k, set) -> {
+            if (set == null) {
+                set = ConcurrentHashMap.newKeySet();
+            }
+            for (long index : indexes) {
+                set.add(index);
+            }
+            return set;
+        });
+    }
+
+    /**
+     * @return 不在缓冲区中、需要到redis确认的下标
+     */
+    private static long[] unbuffered(Set<Long> buffered, long[] indexes) {
+        if (buffered == null) {
+            return indexes;
+        }
+        long[] result = new long[indexes.length];
+        int length = 0;
+        for (long index : indexes) {
+            if (!buffered.contains(index)) {
+                result[length++] = index;
+            }
+        }
+        return length == indexes.length ? indexes : Arrays.copyOf(result, length);
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            LOGGER.error("Failed to flush bloom filter", e);
+        }
+    }
+
+    public int getFlushThreshold() {
+        return flushThreshold;
+    }
+
+    /**
+     * @param flushThreshold 缓冲的下标数达到该值时触发flush
+     */
+    public void setFlushThreshold(int flushThreshold) {
+        if (flushThreshold <= 0) {
+            throw new IllegalArgumentException("flushThreshold must be positive");
+        }
+        this.flushThreshold = flushThreshold;
+    }
+}
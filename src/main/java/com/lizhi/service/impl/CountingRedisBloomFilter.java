@@ -0,0 +1,266 @@
+package com.lizhi.service.impl;
+
+import com.lizhi.service.IRedisCountingBloomFilter;
+import com.lizhi.utils.BloomFilterStats;
+import com.lizhi.utils.HashStrategy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 计数布隆过滤，每个位置是一个4位计数器（BITFIELD u4，溢出时饱和在15），支持remove
+ * <p>
+ * 一个元素的k个计数器在一条BITFIELD命令中完成INCRBY/GET，整个操作是一次EVALSHA。
+ * 已饱和的计数器不再减少，避免删除其他元素后出现假阴性。
+ * 位图大小为计数器个数的4倍，需要redis 3.2及以上版本。
+ *
+ * @param <E>
+ */
+public class CountingRedisBloomFilter<E> extends RedisBloomFilter<E> implements IRedisCountingBloomFilter<E> {
+
+    /**
+     * 计数器位数
+     */
+    public static final int COUNTER_BITS = 4;
+
+    /**
+     * stats每次GETRANGE读取的字节数
+     */
+    private static final int STATS_CHUNK_BYTES = 1 << 20;
+
+    /**
+     * 分段执行BITFIELD的lua函数，每条命令最多500个计数器，避免unpack超出lua栈
+     */
+    private static final String BITFIELD_FUNCTION;
+
+    private static final String ADD_LUA;
+
+    private static final String ALL_SET_LUA;
+
+    /**
+     * ARGV[1]为每个元素的计数器个数，其后依次为每个元素的计数器下标，返回每个元素的结果
+     */
+    private static final String CONTAINS_EACH_LUA;
+
+    /**
+     * 参数同CONTAINS_EACH_LUA，返回每个元素的结果，1：已删除 0：不存在
+     */
+    private static final String REMOVE_EACH_LUA;
+
+    static {
+        StringBuilder sb = new StringBuilder();
+        // 对ARGV[from..to]中的计数器执行INCRBY incr，incr为nil时执行GET，返回所有结果
+        sb.append("local function bitfield(from, to, incr) ");
+        sb.append("    local values = {} ");
+        sb.append("    for i = from, to, 500 do ");
+        sb.append("        local args = {'OVERFLOW', 'SAT'} ");
+        sb.append("        for j = i, math.min(i + 499, to) do ");
+        sb.append("            if incr then ");
+        sb.append("                args[#args + 1] = 'INCRBY' ");
+        sb.append("                args[#args + 1] = 'u4' ");
+        sb.append("                args[#args + 1] = '#' .. ARGV[j] ");
+        sb.append("                args[#args + 1] = incr ");
+        sb.append("            else ");
+        sb.append("                args[#args + 1] = 'GET' ");
+        sb.append("                args[#args + 1] = 'u4' ");
+        sb.append("                args[#args + 1] = '#' .. ARGV[j] ");
+        sb.append("            end ");
+        sb.append("        end ");
+        sb.append("        for _, v in ipairs(redis.call('bitfield', KEYS[1], unpack(args))) do ");
+        sb.append("            values[#values + 1] = v ");
+        sb.append("        end ");
+        sb.append("    end ");
+        sb.append("    return values ");
+        sb.append("end ");
+        BITFIELD_FUNCTION = sb.toString();
+
+        sb = new StringBuilder(BITFIELD_FUNCTION);
+        sb.append("bitfield(1, #ARGV, 1) ");
+        sb.append("return 1 ");
+        ADD_LUA = sb.toString();
+
+        sb = new StringBuilder(BITFIELD_FUNCTION);
+        sb.append("for _, v in ipairs(bitfield(1, #ARGV, nil)) do ");
+        sb.append("    if v == 0 then ");
+        sb.append("        return 0 ");
+        sb.append("    end ");
+        sb.append("end ");
+        sb.append("return 1 ");
+        ALL_SET_LUA = sb.toString();
+
+        sb = new StringBuilder(BITFIELD_FUNCTION);
+        sb.append("local k = tonumber(ARGV[1]) ");
+        sb.append("local values = bitfield(2, #ARGV, nil) ");
+        sb.append("local result = {} ");
+        sb.append("for i = 1, #values, k do ");
+        sb.append("    local present = 1 ");
+        sb.append("    for j = i, i + k - 1 do ");
+        sb.append("        if values[j] == 0 then ");
+        sb.append("            present = 0 ");
+        sb.append("            break ");
+        sb.append("        end ");
+        sb.append("    end ");
+        sb.append("    result[#result + 1] = present ");
+        sb.append("end ");
+        sb.append("return result ");
+        CONTAINS_EACH_LUA = sb.toString();
+
+        sb = new StringBuilder();
+        sb.append("local k = tonumber(ARGV[1]) ");
+        sb.append("local result = {} ");
+        sb.append("for i = 2, #ARGV, k do ");
+        sb.append("    local get = {} ");
+        sb.append("    for j = i, i + k - 1 do ");
+        sb.append("        get[#get + 1] = 'GET' ");
+        sb.append("        get[#get + 1] = 'u4' ");
+        sb.append("        get[#get + 1] = '#' .. ARGV[j] ");
+        sb.append("    end ");
+        sb.append("    local values = redis.call('bitfield', KEYS[1], unpack(get)) ");
+        sb.append("    local present = 1 ");
+        sb.append("    local decr = {'OVERFLOW', 'SAT'} ");
+        sb.append("    for j = 1, k do ");
+        sb.append("        if values[j] == 0 then ");
+        sb.append("            present = 0 ");
+        sb.append("            break ");
+        sb.append("        end ");
+        // 饱和的计数器已经不知道真实次数，不再减少
+        sb.append("        if values[j] < 15 then ");
+        sb.append("            decr[#decr + 1] = 'INCRBY' ");
+        sb.append("            decr[#decr + 1] = 'u4' ");
+        sb.append("            decr[#decr + 1] = '#' .. ARGV[i + j - 1] ");
+        sb.append("            decr[#decr + 1] = -1 ");
+        sb.append("        end ");
+        sb.append("    end ");
+        sb.append("    if present == 1 and #decr > 2 then ");
+        sb.append("        redis.call('bitfield', KEYS[1], unpack(decr)) ");
+        sb.append("    end ");
+        sb.append("    result[#result + 1] = present ");
+        sb.append("end ");
+        sb.append("return result ");
+        REMOVE_EACH_LUA = sb.toString();
+    }
+
+    public CountingRedisBloomFilter() {
+        super();
+    }
+
+    /**
+     * @param m 计数器个数
+     * @param n 容量
+     * @param k 哈希函数个数
+     */
+    public CountingRedisBloomFilter(long m, long n, int k) {
+        super(checkCounters(m), n, k);
+    }
+
+    public CountingRedisBloomFilter(long m, long n, int k, HashStrategy hashStrategy) {
+        super(checkCounters(m), n, k, hashStrategy);
+    }
+
+    public CountingRedisBloomFilter(double falsePositiveProbability, long expectedNumberOfElements) {
+        super(falsePositiveProbability, expectedNumberOfElements);
+        checkCounters(getSizeOfBloomFilter());
+    }
+
+    public CountingRedisBloomFilter(double falsePositiveProbability, long expectedNumberOfElements, HashStrategy hashStrategy) {
+        super(falsePositiveProbability, expectedNumberOfElements, hashStrategy);
+        checkCounters(getSizeOfBloomFilter());
+    }
+
+    private static long checkCounters(long m) {
+        if (m > MAX_SIZE / COUNTER_BITS) {
+            throw new IllegalArgumentException("counting bloom filter supports at most " + MAX_SIZE / COUNTER_BITS + " counters, but was " + m);
+        }
+        return m;
+    }
+
+    @Override
+    public boolean remove(String key, E element) {
+        return removeEach(key, new long[][]{indexes(element)}, 0, 1)[0];
+    }
+
+    @Override
+    public void removeAll(String key, Collection<? extends E> c) {
+        long[][] hashed = indexes(c);
+        int elementsPerBatch = elementsPerBatch();
+        for (int from = 0; from < hashed.length; from += elementsPerBatch) {
+            removeEach(key, hashed, from, Math.min(from + elementsPerBatch, hashed.length));
+        }
+    }
+
+    /**
+     * 统计非0的计数器个数，BITCOUNT数的是位，对4位计数器没有意义
+     * <p>
+     * 分段GETRANGE读到本地统计，不在redis里遍历整个位图
+     *
+     * @return setBits为非0计数器个数，sizeOfBloomFilter为计数器个数
+     */
+    @Override
+    public BloomFilterStats stats(String key) {
+        long bytes = (getSizeOfBloomFilter() * COUNTER_BITS + 7) / 8;
+        long nonZero = 0;
+        for (long start = 0; start < bytes; start += STATS_CHUNK_BYTES) {
+            long end = Math.min(start + STATS_CHUNK_BYTES, bytes) - 1;
+            byte[] chunk = getRedisService().getRange(key, start, end);
+            for (byte b : chunk) {
+                if ((b & 0xF0) != 0) {
+                    nonZero++;
+                }
+                if ((b & 0x0F) != 0) {
+                    nonZero++;
+                }
+            }
+            if (chunk.length < end - start + 1) {
+                break;
+            }
+        }
+        return new BloomFilterStats(key, getSizeOfBloomFilter(), getNumberOfHashFunctions(), getExpectedNumberOfElements(), nonZero);
+    }
+
+    @Override
+    protected boolean setBits(String key, long[] indexes) {
+        getRedisService().eval(ADD_LUA, Collections.singletonList(key), toArgs(indexes));
+        return true;
+    }
+
+    @Override
+    protected boolean allSet(String key, long[] indexes) {
+        Long result = (Long) getRedisService().eval(ALL_SET_LUA, Collections.singletonList(key), toArgs(indexes));
+        return result != null && result > 0;
+    }
+
+    @Override
+    protected boolean[] allSet(String key, long[][] hashed, int from, int to) {
+        return each(CONTAINS_EACH_LUA, key, hashed, from, to);
+    }
+
+    private boolean[] removeEach(String key, long[][] hashed, int from, int to) {
+        return each(REMOVE_EACH_LUA, key, hashed, from, to);
+    }
+
+    private boolean[] each(String script, String key, long[][] hashed, int from, int to) {
+        List<String> args = new ArrayList<>(1 + (to - from) * getNumberOfHashFunctions());
+        args.add(String.valueOf(getNumberOfHashFunctions()));
+        for (int i = from; i < to; i++) {
+            for (long index : hashed[i]) {
+                args.add(String.valueOf(index));
+            }
+        }
+        List<?> results = (List<?>) getRedisService().eval(script, Collections.singletonList(key), args);
+        boolean[] result = new boolean[to - from];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (Long) results.get(i) > 0;
+        }
+        return result;
+    }
+
+    private static List<String> toArgs(long[] indexes) {
+        List<String> args = new ArrayList<>(indexes.length);
+        for (long index : indexes) {
+            args.add(String.valueOf(index));
+        }
+        return args;
+    }
+}
@@ -0,0 +1,241 @@
+package com.lizhi.service.impl;
+
+import com.lizhi.service.IRedisService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 锁释放通知
+ * <p>
+ * 释放锁的lua脚本删除key后向 CHANNEL_PREFIX + key 发布消息，这里用一个模式订阅（CHANNEL_PREFIX*）接收所有锁的释放消息，
+ * 唤醒本JVM内等待同一个key的线程，等待的线程不必等满重试间隔，释放到重试只差一次网络往返。
+ * <p>
+ * 锁过期不会有通知，订阅断开期间的消息也会丢失，所以等待始终带超时，超时后照常重试。
+ * 订阅在第一次真正需要等待时才建立，没有竞争时不占用订阅连接。
+ */
+@Component
+public class LockReleaseNotifier implements MessageListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LockReleaseNotifier.class);
+
+    public static final String CHANNEL_PREFIX = "redis-tools:lock:released:";
+
+    private final IRedisService redisService;
+
+    /**
+     * key -> 本JVM内等待该key的线程
+     */
+    private final Map<String, Waiters> waiters = new ConcurrentHashMap<>();
+
+    private volatile boolean subscribed;
+
+    @Autowired
+    public LockReleaseNotifier(IRedisService redisService) {
+        this.redisService = redisService;
+    }
+
+    /**
+     * @param key 锁
+     * @return 释放该锁时发布消息的频道
+     */
+    public static String channel(String key) {
+        return CHANNEL_PREFIX + key;
+    }
+
+    /**
+     * 为一次加锁创建等待器，用完需close
+     *
+     * @param key 锁
+     * @return 等待器
+     */
+    public Waiter newWaiter(String key) {
+        return new Waiter(key);
+    }
+
+    /**
+     * 锁释放时回调，用于不阻塞线程的等待
+     * 回调在订阅线程里执行，应尽快返回；用完需close
+     *
+     * @param key      锁
+     * @param callback 回调
+     * @return 登记，close后不再回调
+     */
+    public Registration onRelease(String key, Runnable callback) {
+        Waiters w = register(key);
+        w.callbacks.add(callback);
+        return new Registration(key, w, callback);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        if (!channel.startsWith(CHANNEL_PREFIX)) {
+            return;
+        }
+        Waiters w = waiters.get(channel.substring(CHANNEL_PREFIX.length()));
+        if (w != null) {
+            w.signal();
+            for (Runnable callback : w.callbacks) {
+                try {
+                    callback.run();
+                } catch (Exception e) {
+                    LOGGER.error("Lock release callback failed, channel:[{}]", channel, e);
+                }
+            }
+        }
+    }
+
+    private void ensureSubscribed() {
+        if (subscribed) {
+            return;
+        }
+        synchronized (this) {
+            if (subscribed) {
+                return;
+            }
+            // 订阅失败也不再重试，等待退化为按间隔sleep
+            subscribed = true;
+            try {
+                redisService.psubscribe(this, CHANNEL_PREFIX + "*");
+            } catch (Exception e) {
+                LOGGER.error("Failed to subscribe lock release channel, waiting falls back to polling", e);
+            }
+        }
+    }
+
+    private Waiters register(String key) {
+        ensureSubscribed();
+        return waiters.compute(key, (k, w) -> {
+            if (w == null) {
+                w = new Waiters();
+            }
+            w.refs++;
+            return w;
+        });
+    }
+
+    private void unregister(String key) {
+        waiters.computeIfPresent(key, (k, w) -> --w.refs == 0 ? null : w);
+    }
+
+    /**
+     * 同一个key的等待者共用一个监视器，每收到一次释放消息version加一并执行回调
+     */
+    private static final class Waiters {
+
+        /**
+         * 只在map的compute里修改
+         */
+        private int refs;
+
+        private long version;
+
+        private final List<Runnable> callbacks = new CopyOnWriteArrayList<>();
+
+        synchronized long version() {
+            return version;
+        }
+
+        synchronized void signal() {
+            version++;
+            notifyAll();
+        }
+
+        synchronized void await(long seen, long millis) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+            long left = millis;
+            while (version == seen && left > 0) {
+                wait(left);
+                left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            }
+        }
+    }
+
+    /**
+     * onRelease的登记
+     */
+    public final class Registration implements AutoCloseable {
+
+        private final String key;
+
+        private final Waiters waiters;
+
+        private final Runnable callback;
+
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Registration(String key, Waiters waiters, Runnable callback) {
+            this.key = key;
+            this.waiters = waiters;
+            this.callback = callback;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                waiters.callbacks.remove(callback);
+                unregister(key);
+            }
+        }
+    }
+
+    /**
+     * 一次加锁过程中的等待器，第一次等待时才登记
+     */
+    public final class Waiter implements AutoCloseable {
+
+        private final String key;
+
+        private Waiters waiters;
+
+        private long seen;
+
+        private Waiter(String key) {
+            this.key = key;
+        }
+
+        /**
+         * 每次尝试加锁前调用，记下当前version
+         * 加锁失败到开始等待之间发生的释放会使await立即返回，不会丢失
+         */
+        public void mark() {
+            if (waiters != null) {
+                seen = waiters.version();
+            }
+        }
+
+        /**
+         * 等待锁释放通知，最多等待millis
+         *
+         * @param millis 超时时间ms
+         * @throws InterruptedException
+         */
+        public void await(long millis) throws InterruptedException {
+            if (waiters == null) {
+                waiters = register(key);
+                seen = waiters.version();
+            }
+            waiters.await(seen, millis);
+        }
+
+        @Override
+        public void close() {
+            if (waiters != null) {
+                waiters = null;
+                unregister(key);
+            }
+        }
+    }
+}
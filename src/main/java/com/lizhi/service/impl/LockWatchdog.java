@@ -0,0 +1,206 @@
+package com.lizhi.service.impl;
+
+import com.lizhi.service.IRedisService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 锁续期看门狗
+ * <p>
+ * 持锁期间每过 租期 * renewFraction 用lua脚本比较value后PEXPIRE续期一次，直到releaseLock。
+ * 这样租期可以设得很短：进程挂掉后锁很快过期，而正常执行的长任务不会中途丢锁。
+ * <p>
+ * 整个JVM共用一个调度线程，每个tick把到期的锁合并成一批续期（单机模式一次管道），锁再多也只有一个线程、每tick一次往返。
+ * 租期应明显大于 tickMillis / renewFraction。
+ */
+@Component
+public class LockWatchdog {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LockWatchdog.class);
+
+    private static final long DEFAULT_TICK_MILLIS = 100;
+
+    private final IRedisService redisService;
+
+    private final long tickMillis;
+
+    /**
+     * key + 持有者 -> 租约
+     */
+    private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+
+    private volatile double renewFraction = 1.0 / 3;
+
+    private ScheduledExecutorService scheduler;
+
+    @Autowired
+    public LockWatchdog(IRedisService redisService) {
+        this(redisService, DEFAULT_TICK_MILLIS);
+    }
+
+    public LockWatchdog(IRedisService redisService, long tickMillis) {
+        this.redisService = redisService;
+        this.tickMillis = tickMillis;
+    }
+
+    /**
+     * 开始为一把已经拿到的锁续期
+     *
+     * @param key         锁
+     * @param value       加锁时的value（可重入锁为持有者）
+     * @param leaseMillis 租期ms，每次续期都续到这个长度
+     */
+    public void watch(String key, String value, long leaseMillis) {
+        ensureStarted();
+        Lease lease = new Lease(key, value, leaseMillis, renewFraction);
+        leases.put(lease.id, lease);
+    }
+
+    /**
+     * 停止续期，释放锁前调用
+     *
+     * @param key   锁
+     * @param value 加锁时的value（可重入锁为持有者）
+     */
+    public void unwatch(String key, String value) {
+        leases.remove(Lease.id(key, value));
+    }
+
+    /**
+     * @param key   锁
+     * @param value 加锁时的value（可重入锁为持有者）
+     * @return 还在续期：true，已经unwatch或者续期时发现锁已丢失：false
+     */
+    public boolean isWatched(String key, String value) {
+        return leases.containsKey(Lease.id(key, value));
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        leases.clear();
+    }
+
+    private synchronized void ensureStarted() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "redis-lock-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::renewDue, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void renewDue() {
+        long now = System.nanoTime();
+        List<Lease> due = new ArrayList<>();
+        for (Lease lease : leases.values()) {
+            if (now - lease.renewAt >= 0) {
+                due.add(lease);
+            }
+        }
+        if (due.isEmpty()) {
+            return;
+        }
+        String[] keys = new String[due.size()];
+        String[] values = new String[due.size()];
+        long[] expireMillis = new long[due.size()];
+        for (int i = 0; i < due.size(); i++) {
+            Lease lease = due.get(i);
+            keys[i] = lease.key;
+            values[i] = lease.value;
+            expireMillis[i] = lease.leaseMillis;
+        }
+        boolean[] renewed;
+        try {
+            renewed = redisService.renewLocks(keys, values, expireMillis);
+        } catch (Exception e) {
+            LOGGER.error("Failed to renew [{}] locks", due.size(), e);
+            // 下个tick重试，已经过期的不再续
+            for (Lease lease : due) {
+                if (now - lease.expireAt >= 0 && leases.remove(lease.id, lease)) {
+                    LOGGER.warn("Lock lease expired before renewal, key:[{}]", lease.key);
+                }
+            }
+            return;
+        }
+        for (int i = 0; i < due.size(); i++) {
+            Lease lease = due.get(i);
+            if (renewed[i]) {
+                lease.renewed(now);
+            } else if (leases.remove(lease.id, lease)) {
+                // 并发unwatch的锁已经不在map里，不算丢锁
+                LOGGER.warn("Lock lost before renewal, key:[{}]", lease.key);
+            }
+        }
+    }
+
+    public double getRenewFraction() {
+        return renewFraction;
+    }
+
+    /**
+     * @param renewFraction 租期过去多少比例时续期，(0, 1)
+     */
+    public void setRenewFraction(double renewFraction) {
+        if (renewFraction <= 0 || renewFraction >= 1) {
+            throw new IllegalArgumentException("renewFraction must be in (0, 1)");
+        }
+        this.renewFraction = renewFraction;
+    }
+
+    /**
+     * 只在调度线程里修改renewAt/expireAt
+     */
+    private static final class Lease {
+
+        private final String id;
+
+        private final String key;
+
+        private final String value;
+
+        private final long leaseMillis;
+
+        private final long renewIntervalNanos;
+
+        private long renewAt;
+
+        private long expireAt;
+
+        private Lease(String key, String value, long leaseMillis, double renewFraction) {
+            this.id = id(key, value);
+            this.key = key;
+            this.value = value;
+            this.leaseMillis = leaseMillis;
+            this.renewIntervalNanos = (long) (TimeUnit.MILLISECONDS.toNanos(leaseMillis) * renewFraction);
+            renewed(System.nanoTime());
+        }
+
+        private static String id(String key, String value) {
+            return key + '\n' + value;
+        }
+
+        private void renewed(long now) {
+            renewAt = now + renewIntervalNanos;
+            expireAt = now + TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+        }
+    }
+}
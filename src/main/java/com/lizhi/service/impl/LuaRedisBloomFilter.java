@@ -0,0 +1,117 @@
+package com.lizhi.service.impl;
+
+import com.lizhi.utils.HashStrategy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * lua脚本实现的布隆过滤
+ * 客户端计算出k个下标，一次EVALSHA在redis上原子地完成全部setbit/getbit，contains遇到第一个为0的位立即返回
+ * 不依赖管道，集群模式（JedisCluster）下同样是一次网络往返
+ *
+ * @param <E>
+ */
+public class LuaRedisBloomFilter<E> extends RedisBloomFilter<E> {
+
+    private static final String ADD_LUA;
+
+    private static final String CONTAINS_LUA;
+
+    /**
+     * ARGV[1]为每个元素的下标个数，其后依次为每个元素的下标，返回每个元素的结果
+     */
+    private static final String CONTAINS_EACH_LUA;
+
+    static {
+        StringBuilder sb = new StringBuilder();
+        sb.append("for i = 1, #ARGV do ");
+        sb.append("    redis.call('setbit', KEYS[1], ARGV[i], 1) ");
+        sb.append("end ");
+        sb.append("return 1 ");
+        ADD_LUA = sb.toString();
+
+        sb = new StringBuilder();
+        sb.append("for i = 1, #ARGV do ");
+        sb.append("    if redis.call('getbit', KEYS[1], ARGV[i]) == 0 then ");
+        sb.append("        return 0 ");
+        sb.append("    end ");
+        sb.append("end ");
+        sb.append("return 1 ");
+        CONTAINS_LUA = sb.toString();
+
+        sb = new StringBuilder();
+        sb.append("local k = tonumber(ARGV[1]) ");
+        sb.append("local result = {} ");
+        sb.append("for i = 2, #ARGV, k do ");
+        sb.append("    local present = 1 ");
+        sb.append("    for j = i, i + k - 1 do ");
+        sb.append("        if redis.call('getbit', KEYS[1], ARGV[j]) == 0 then ");
+        sb.append("            present = 0 ");
+        sb.append("            break ");
+        sb.append("        end ");
+        sb.append("    end ");
+        sb.append("    result[#result + 1] = present ");
+        sb.append("end ");
+        sb.append("return result ");
+        CONTAINS_EACH_LUA = sb.toString();
+    }
+
+    public LuaRedisBloomFilter() {
+        super();
+    }
+
+    public LuaRedisBloomFilter(long m, long n, int k) {
+        super(m, n, k);
+    }
+
+    public LuaRedisBloomFilter(long m, long n, int k, HashStrategy hashStrategy) {
+        super(m, n, k, hashStrategy);
+    }
+
+    public LuaRedisBloomFilter(double falsePositiveProbability, long expectedNumberOfElements) {
+        super(falsePositiveProbability, expectedNumberOfElements);
+    }
+
+    public LuaRedisBloomFilter(double falsePositiveProbability, long expectedNumberOfElements, HashStrategy hashStrategy) {
+        super(falsePositiveProbability, expectedNumberOfElements, hashStrategy);
+    }
+
+    @Override
+    protected boolean setBits(String key, long[] indexes) {
+        getRedisService().eval(ADD_LUA, Collections.singletonList(key), toArgs(indexes));
+        return true;
+    }
+
+    @Override
+    protected boolean allSet(String key, long[] indexes) {
+        Long result = (Long) getRedisService().eval(CONTAINS_LUA, Collections.singletonList(key), toArgs(indexes));
+        return result != null && result > 0;
+    }
+
+    @Override
+    protected boolean[] allSet(String key, long[][] hashed, int from, int to) {
+        List<String> args = new ArrayList<>(1 + (to - from) * getNumberOfHashFunctions());
+        args.add(String.valueOf(getNumberOfHashFunctions()));
+        for (int i = from; i < to; i++) {
+            for (long index : hashed[i]) {
+                args.add(String.valueOf(index));
+            }
+        }
+        List<?> results = (List<?>) getRedisService().eval(CONTAINS_EACH_LUA, Collections.singletonList(key), args);
+        boolean[] result = new boolean[to - from];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (Long) results.get(i) > 0;
+        }
+        return result;
+    }
+
+    private static List<String> toArgs(long[] indexes) {
+        List<String> args = new ArrayList<>(indexes.length);
+        for (long index : indexes) {
+            args.add(String.valueOf(index));
+        }
+        return args;
+    }
+}
@@ -0,0 +1,343 @@
+package com.lizhi.service.impl;
+
+import com.lizhi.utils.HashStrategy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 带本地镜像的布隆过滤，适用于读多写少的场景
+ * <p>
+ * 每个key的位图在本地保存一份副本（按redis的位序打包成long），第一次访问时用分段GETRANGE加载，
+ * 之后按固定间隔全量刷新，或者在 {@link #REFRESH_CHANNEL} 上收到该key的通知时立即刷新。
+ * contains只读本地副本，没有网络调用；add仍然写redis，同时写入本地副本。
+ * 打开publishOnWrite后，add把写入的位偏移发布到 {@link #BITS_CHANNEL}，其他节点直接置位，不用重新加载整个位图。
+ * <p>
+ * 刷新时把读到的位图OR进本地副本，不替换，刷新期间本地写入的位不会丢失；
+ * 因此redis上的key被删除或过期后本地副本不会清零，需要调用evict。
+ * <p>
+ * 其他节点写入后到本地刷新前，本地副本可能缺少新位，此时contains会返回false（假阴性）。
+ * 不能接受时打开confirmMiss，本地未命中的元素会再到redis确认一次。
+ *
+ * @param <E>
+ */
+public class MirroredRedisBloomFilter<E> extends RedisBloomFilter<E> implements MessageListener {
+
+    /**
+     * 刷新通知频道，消息内容为过滤器的key
+     */
+    public static final String REFRESH_CHANNEL = "redis-tools:bloom-filter:refresh";
+
+    /**
+     * 写入通知频道，消息内容为 key + '\n' + 逗号分隔的位偏移
+     */
+    public static final String BITS_CHANNEL = "redis-tools:bloom-filter:bits";
+
+    /**
+     * 每次GETRANGE读取的字节数，避免一次返回过大的值阻塞redis
+     */
+    private static final int CHUNK_BYTES = 1 << 20;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MirroredRedisBloomFilter.class);
+
+    private final Map<String, AtomicLongArray> mirrors = new ConcurrentHashMap<>();
+
+    /**
+     * 本地未命中时是否到redis确认
+     */
+    private volatile boolean confirmMiss = false;
+
+    /**
+     * 写入后是否发布写入的位偏移
+     */
+    private volatile boolean publishOnWrite = false;
+
+    private ScheduledExecutorService scheduler;
+
+    public MirroredRedisBloomFilter() {
+        super();
+    }
+
+    public MirroredRedisBloomFilter(long m, long n, int k) {
+        super(m, n, k);
+    }
+
+    public MirroredRedisBloomFilter(long m, long n, int k, HashStrategy hashStrategy) {
+        super(m, n, k, hashStrategy);
+    }
+
+    public MirroredRedisBloomFilter(double falsePositiveProbability, long expectedNumberOfElements) {
+        super(falsePositiveProbability, expectedNumberOfElements);
+    }
+
+    public MirroredRedisBloomFilter(double falsePositiveProbability, long expectedNumberOfElements, HashStrategy hashStrategy) {
+        super(falsePositiveProbability, expectedNumberOfElements, hashStrategy);
+    }
+
+    /**
+     * 开始定时刷新并订阅刷新通知，需在setRedisService之后调用
+     *
+     * @param refreshInterval 刷新间隔
+     * @param timeUnit        单位
+     */
+    public synchronized void start(long refreshInterval, TimeUnit timeUnit) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "bloom-filter-mirror");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::refreshAll, refreshInterval, refreshInterval, timeUnit);
+        getRedisService().subscribe(this, REFRESH_CHANNEL);
+        getRedisService().subscribe(this, BITS_CHANNEL);
+    }
+
+    /**
+     * 停止刷新并取消订阅
+     */
+    public synchronized void shutdown() {
+        if (scheduler == null) {
+            return;
+        }
+        getRedisService().unsubscribe(this, REFRESH_CHANNEL);
+        getRedisService().unsubscribe(this, BITS_CHANNEL);
+        scheduler.shutdownNow();
+        scheduler = null;
+    }
+
+    /**
+     * 立即从redis读取key的位图并合并到本地副本
+     *
+     * @param key 键
+     */
+    public void refresh(String key) {
+        AtomicLongArray loaded = load(key);
+        AtomicLongArray words = mirrors.putIfAbsent(key, loaded);
+        if (words != null) {
+            for (int i = 0; i < loaded.length(); i++) {
+                long word = loaded.get(i);
+                if (word != 0) {
+                    words.accumulateAndGet(i, word, (a, b) -> a | b);
+                }
+            }
+        }
+    }
+
+    /**
+     * 丢弃key的本地副本，下次访问时重新加载；redis上的key被删除或过期后调用
+     *
+     * @param key 键
+     */
+    public void evict(String key) {
+        mirrors.remove(key);
+    }
+
+    /**
+     * 通知所有节点刷新key的本地副本，一般在批量写入完成后调用
+     *
+     * @param key 键
+     */
+    public void notifyUpdated(String key) {
+        getRedisService().sendMessage(REFRESH_CHANNEL, key);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        if (BITS_CHANNEL.equals(new String(message.getChannel(), StandardCharsets.UTF_8))) {
+            applyBits(body);
+            return;
+        }
+        final String key = body;
+        ScheduledExecutorService scheduler = this.scheduler;
+        if (scheduler != null && mirrors.containsKey(key)) {
+            scheduler.execute(() -> refreshQuietly(key));
+        }
+    }
+
+    @Override
+    protected boolean setBits(String key, long[] indexes) {
+        // redis没写进去就不能改本地副本，refresh只会OR上redis的位图，多出来的位永远清不掉
+        if (!super.setBits(key, indexes)) {
+            return false;
+        }
+        AtomicLongArray words = mirrors.get(key);
+        if (words != null) {
+            setLocal(words, indexes);
+        }
+        if (publishOnWrite) {
+            StringBuilder sb = new StringBuilder(key.length() + indexes.length * 11);
+            sb.append(key).append('\n');
+            for (int i = 0; i < indexes.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(indexes[i]);
+            }
+            getRedisService().sendMessage(BITS_CHANNEL, sb.toString());
+        }
+        return true;
+    }
+
+    /**
+     * 其他节点写入的位偏移直接置位，本地还没有副本的key忽略（加载时会读到）
+     */
+    private void applyBits(String body) {
+        // 位偏移里没有换行，最后一个换行之前都是key
+        int separator = body.lastIndexOf('\n');
+        if (separator < 0) {
+            return;
+        }
+        AtomicLongArray words = mirrors.get(body.substring(0, separator));
+        if (words == null || separator == body.length() - 1) {
+            return;
+        }
+        String[] offsets = body.substring(separator + 1).split(",");
+        long[] indexes = new long[offsets.length];
+        try {
+            for (int i = 0; i < offsets.length; i++) {
+                indexes[i] = Long.parseLong(offsets[i]);
+                if (indexes[i] < 0 || word(indexes[i]) >= words.length()) {
+                    // 其他节点的过滤器大小配置不同
+                    throw new NumberFormatException("offset out of range: " + indexes[i]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            LOGGER.error("Illegal bloom filter bits message:[{}]", body, e);
+            return;
+        }
+        setLocal(words, indexes);
+    }
+
+    private static void setLocal(AtomicLongArray words, long[] indexes) {
+        for (long index : indexes) {
+            words.accumulateAndGet(word(index), mask(index), (a, b) -> a | b);
+        }
+    }
+
+    @Override
+    protected boolean allSet(String key, long[] indexes) {
+        if (isSet(mirror(key), indexes)) {
+            return true;
+        }
+        return confirmMiss && super.allSet(key, indexes);
+    }
+
+    @Override
+    protected boolean[] allSet(String key, long[][] hashed, int from, int to) {
+        AtomicLongArray words = mirror(key);
+        boolean[] result = new boolean[to - from];
+        List<long[]> misses = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            result[i - from] = isSet(words, hashed[i]);
+            if (!result[i - from]) {
+                misses.add(hashed[i]);
+            }
+        }
+        if (confirmMiss && !misses.isEmpty()) {
+            boolean[] confirmed = super.allSet(key, misses.toArray(new long[misses.size()][]), 0, misses.size());
+            int miss = 0;
+            for (int i = 0; i < result.length; i++) {
+                if (!result[i]) {
+                    result[i] = confirmed[miss++];
+                }
+            }
+        }
+        return result;
+    }
+
+    private AtomicLongArray mirror(String key) {
+        AtomicLongArray words = mirrors.get(key);
+        if (words == null) {
+            words = load(key);
+            AtomicLongArray previous = mirrors.putIfAbsent(key, words);
+            if (previous != null) {
+                words = previous;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * 分段GETRANGE读取整个位图，redis中位偏移0是第一个字节的最高位，按大端序打包进long
+     */
+    private AtomicLongArray load(String key) {
+        long bytes = (getSizeOfBloomFilter() + 7) / 8;
+        long[] words = new long[(int) ((bytes + 7) / 8)];
+        for (long start = 0; start < bytes; start += CHUNK_BYTES) {
+            long end = Math.min(start + CHUNK_BYTES, bytes) - 1;
+            byte[] chunk = getRedisService().getRange(key, start, end);
+            for (int i = 0; i < chunk.length; i++) {
+                if (chunk[i] != 0) {
+                    long position = start + i;
+                    words[(int) (position >>> 3)] |= (chunk[i] & 0xFFL) << ((7 - (int) (position & 7)) * 8);
+                }
+            }
+            if (chunk.length < end - start + 1) {
+                // 值比位图短，剩下的位都是0
+                break;
+            }
+        }
+        return new AtomicLongArray(words);
+    }
+
+    private void refreshAll() {
+        for (String key : mirrors.keySet()) {
+            refreshQuietly(key);
+        }
+    }
+
+    private void refreshQuietly(String key) {
+        try {
+            refresh(key);
+        } catch (Exception e) {
+            LOGGER.error("Failed to refresh bloom filter mirror, key:[{}]", key, e);
+        }
+    }
+
+    private static boolean isSet(AtomicLongArray words, long[] indexes) {
+        for (long index : indexes) {
+            if ((words.get(word(index)) & mask(index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int word(long index) {
+        return (int) (index >>> 6);
+    }
+
+    private static long mask(long index) {
+        return 1L << (63 - (int) (index & 63));
+    }
+
+    public boolean isConfirmMiss() {
+        return confirmMiss;
+    }
+
+    public void setConfirmMiss(boolean confirmMiss) {
+        this.confirmMiss = confirmMiss;
+    }
+
+    public boolean isPublishOnWrite() {
+        return publishOnWrite;
+    }
+
+    public void setPublishOnWrite(boolean publishOnWrite) {
+        this.publishOnWrite = publishOnWrite;
+    }
+}
@@ -0,0 +1,335 @@
+package com.lizhi.service.impl;
+
+import com.lizhi.service.IRedisBloomFilter;
+import com.lizhi.service.IRedisService;
+import com.lizhi.utils.BloomFilterStats;
+import com.lizhi.utils.BloomFilterStatsListener;
+import com.lizhi.utils.HashStrategy;
+import com.lizhi.utils.Murmur3HashStrategy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * 带饱和度监控、可自动轮换的布隆过滤
+ * <p>
+ * 后台线程按固定间隔对用过的每个key执行BITCOUNT，估算已插入元素数和实际容错率，回调BloomFilterStatsListener。
+ * <p>
+ * 调用 {@link #enableRotation(double, Supplier)} 后，实际容错率超过阈值时，一个节点（通过redis锁选出）
+ * 用rebuildSource提供的全部元素重建一个容量为 max(估算元素数, 当前容量) * growthFactor 的新过滤器，
+ * 写入新key后再切换指针 key:active，旧的位图保留两个检查周期后过期。
+ * 容量不超过单个位图（MAX_SIZE位）在该容错率下能容纳的上限 {@link #getMaxCapacity()}，超过时截断并告警；
+ * 已经达到上限的过滤器不再轮换，需要改用分片过滤器。
+ * 其他节点在下一次检查时读取指针完成切换。
+ * <p>
+ * 第0版直接使用原key，所以已有的过滤器可以原地接入监控。
+ * 重建期间其他节点写入旧位图的元素只有在rebuildSource中才会出现在新过滤器里，rebuildSource应当是数据的权威来源。
+ *
+ * @param <E>
+ */
+public class MonitoredRedisBloomFilter<E> implements IRedisBloomFilter<E> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MonitoredRedisBloomFilter.class);
+
+    private IRedisService redisService;
+
+    private final double falsePositiveProbability;
+
+    private final long expectedNumberOfElements;
+
+    private final HashStrategy hashStrategy;
+
+    private final List<BloomFilterStatsListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * 逻辑key -> 当前使用的过滤器
+     */
+    private final Map<String, Active<E>> active = new ConcurrentHashMap<>();
+
+    private volatile Supplier<? extends Collection<? extends E>> rebuildSource;
+
+    private volatile double maxFalsePositiveProbability = 1;
+
+    private volatile double growthFactor = 2;
+
+    /**
+     * 单个位图在该容错率下的最大容量
+     */
+    private final long maxCapacity;
+
+    private long checkIntervalMillis;
+
+    private ScheduledExecutorService scheduler;
+
+    public MonitoredRedisBloomFilter(double falsePositiveProbability, long expectedNumberOfElements) {
+        this(falsePositiveProbability, expectedNumberOfElements, Murmur3HashStrategy.INSTANCE);
+    }
+
+    public MonitoredRedisBloomFilter(double falsePositiveProbability, long expectedNumberOfElements, HashStrategy hashStrategy) {
+        this.falsePositiveProbability = falsePositiveProbability;
+        this.expectedNumberOfElements = expectedNumberOfElements;
+        this.hashStrategy = hashStrategy;
+        // m = ceil(k * n / ln2) <= MAX_SIZE，减1避免浮点误差
+        int k = (int) Math.ceil(-(Math.log(falsePositiveProbability) / Math.log(2)));
+        this.maxCapacity = (long) Math.floor(RedisBloomFilter.MAX_SIZE * Math.log(2) / k) - 1;
+    }
+
+    /**
+     * 开始定时检查，需在setRedisService之后调用
+     *
+     * @param checkInterval 检查间隔
+     * @param timeUnit      单位
+     */
+    public synchronized void start(long checkInterval, TimeUnit timeUnit) {
+        if (scheduler != null) {
+            return;
+        }
+        checkIntervalMillis = timeUnit.toMillis(checkInterval);
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "bloom-filter-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::checkAll, checkInterval, checkInterval, timeUnit);
+    }
+
+    public synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    public void addListener(BloomFilterStatsListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(BloomFilterStatsListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * 开启自动轮换
+     *
+     * @param maxFalsePositiveProbability 实际容错率超过该值时重建
+     * @param rebuildSource               重建时提供过滤器应包含的全部元素
+     */
+    public void enableRotation(double maxFalsePositiveProbability, Supplier<? extends Collection<? extends E>> rebuildSource) {
+        this.maxFalsePositiveProbability = maxFalsePositiveProbability;
+        this.rebuildSource = rebuildSource;
+    }
+
+    public void disableRotation() {
+        this.rebuildSource = null;
+    }
+
+    /**
+     * 立即统计一次，同时刷新轮换指针
+     *
+     * @param key 键
+     * @return 当前过滤器的统计
+     */
+    public BloomFilterStats check(String key) {
+        Active<E> current = loadPointer(key);
+        Active<E> cached = active.get(key);
+        if (cached == null || cached.version != current.version) {
+            active.put(key, current);
+        } else {
+            current = cached;
+        }
+        BloomFilterStats stats = current.filter.stats(current.physicalKey);
+        for (BloomFilterStatsListener listener : listeners) {
+            try {
+                listener.onStats(stats);
+            } catch (Exception e) {
+                LOGGER.error("BloomFilterStatsListener failed, key:[{}]", key, e);
+            }
+        }
+        Supplier<? extends Collection<? extends E>> source = rebuildSource;
+        if (source != null && stats.getFalsePositiveProbability() > maxFalsePositiveProbability) {
+            LOGGER.warn("Bloom filter is saturated, rebuilding: {}", stats);
+            rotate(key, current, stats, source);
+        }
+        return stats;
+    }
+
+    @Override
+    public void setRedisService(IRedisService redisService) {
+        this.redisService = redisService;
+    }
+
+    @Override
+    public void init(String key, long expireTime, TimeUnit timeUnit) {
+        Active<E> current = resolve(key);
+        current.filter.init(current.physicalKey, expireTime, timeUnit);
+    }
+
+    @Override
+    public void init(String key) {
+        Active<E> current = resolve(key);
+        current.filter.init(current.physicalKey);
+    }
+
+    @Override
+    public void add(String key, E element) {
+        Active<E> current = resolve(key);
+        current.filter.add(current.physicalKey, element);
+    }
+
+    @Override
+    public void addAll(String key, Collection<? extends E> c) {
+        Active<E> current = resolve(key);
+        current.filter.addAll(current.physicalKey, c);
+    }
+
+    @Override
+    public boolean contains(String key, E element) {
+        Active<E> current = resolve(key);
+        return current.filter.contains(current.physicalKey, element);
+    }
+
+    @Override
+    public boolean containsAll(String key, Collection<? extends E> c) {
+        Active<E> current = resolve(key);
+        return current.filter.containsAll(current.physicalKey, c);
+    }
+
+    @Override
+    public boolean[] containsEach(String key, Collection<? extends E> c) {
+        Active<E> current = resolve(key);
+        return current.filter.containsEach(current.physicalKey, c);
+    }
+
+    private Active<E> resolve(String key) {
+        Active<E> current = active.get(key);
+        if (current == null) {
+            current = loadPointer(key);
+            Active<E> previous = active.putIfAbsent(key, current);
+            if (previous != null) {
+                current = previous;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * 读取指针，值为 版本:容量，不存在时为第0版
+     */
+    private Active<E> loadPointer(String key) {
+        Object pointer = redisService.get(pointerKey(key));
+        if (pointer == null) {
+            return new Active<>(key, 0, expectedNumberOfElements);
+        }
+        String[] parts = String.valueOf(pointer).split(":");
+        return new Active<>(key, Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+    }
+
+    private void rotate(String key, Active<E> current, BloomFilterStats stats, Supplier<? extends Collection<? extends E>> source) {
+        if (current.expectedNumberOfElements >= maxCapacity) {
+            LOGGER.warn("Bloom filter is already at max capacity [{}], can not rotate, key:[{}]", maxCapacity, key);
+            return;
+        }
+        double wanted = Math.ceil(Math.max(stats.getEstimatedNumberOfElements(), current.expectedNumberOfElements) * growthFactor);
+        long expected = wanted >= maxCapacity ? maxCapacity : (long) wanted;
+        if (expected == maxCapacity) {
+            LOGGER.warn("Bloom filter capacity clamped from [{}] to [{}], key:[{}]", (long) wanted, maxCapacity, key);
+        }
+        String lockKey = key + ":rotating";
+        String token = UUID.randomUUID().toString();
+        // 只允许一个节点重建
+        if (!redisService.redisLock(lockKey, token, 1, TimeUnit.HOURS)) {
+            return;
+        }
+        try {
+            Active<E> latest = loadPointer(key);
+            if (latest.version != current.version) {
+                active.put(key, latest);
+                return;
+            }
+            Active<E> next = new Active<>(key, current.version + 1, expected);
+            try {
+                next.filter.addAll(next.physicalKey, source.get());
+            } catch (Exception e) {
+                // 重建失败不切换，删掉写了一半的新位图，下次检查再试
+                LOGGER.error("Failed to rebuild bloom filter, key:[{}], version:[{}]", key, next.version, e);
+                redisService.remove(next.physicalKey);
+                return;
+            }
+            Long ttl = redisService.getExpireTime(current.physicalKey);
+            if (ttl != null && ttl > 0) {
+                redisService.expire(next.physicalKey, ttl, TimeUnit.SECONDS);
+            }
+            redisService.set(pointerKey(key), next.version + ":" + next.expectedNumberOfElements);
+            // 还没切换的节点仍在使用旧位图，保留两个检查周期
+            redisService.expire(current.physicalKey, Math.max(checkIntervalMillis * 2, 1000), TimeUnit.MILLISECONDS);
+            active.put(key, next);
+            LOGGER.info("Bloom filter rotated, key:[{}], version:[{}], expectedNumberOfElements:[{}]", key, next.version, expected);
+        } finally {
+            redisService.releaseLock(lockKey, token);
+        }
+    }
+
+    private void checkAll() {
+        for (String key : active.keySet()) {
+            try {
+                check(key);
+            } catch (Exception e) {
+                LOGGER.error("Failed to check bloom filter, key:[{}]", key, e);
+            }
+        }
+    }
+
+    private static String pointerKey(String key) {
+        return key + ":active";
+    }
+
+    public long getMaxCapacity() {
+        return maxCapacity;
+    }
+
+    public double getGrowthFactor() {
+        return growthFactor;
+    }
+
+    /**
+     * @param growthFactor 重建时容量的放大倍数
+     */
+    public void setGrowthFactor(double growthFactor) {
+        if (growthFactor < 1) {
+            throw new IllegalArgumentException("growthFactor must be at least 1");
+        }
+        this.growthFactor = growthFactor;
+    }
+
+    /**
+     * 某个版本的过滤器
+     */
+    private final class Active<T> {
+
+        private final long version;
+
+        private final long expectedNumberOfElements;
+
+        private final String physicalKey;
+
+        private final RedisBloomFilter<T> filter;
+
+        private Active(String key, long version, long expectedNumberOfElements) {
+            this.version = version;
+            this.expectedNumberOfElements = expectedNumberOfElements;
+            this.physicalKey = version == 0 ? key : key + ":v" + version;
+            this.filter = new RedisBloomFilter<>(falsePositiveProbability, expectedNumberOfElements, hashStrategy);
+            this.filter.setRedisService(redisService);
+        }
+    }
+}
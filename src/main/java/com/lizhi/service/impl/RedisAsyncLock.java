@@ -0,0 +1,322 @@
+package com.lizhi.service.impl;
+
+import com.lizhi.service.IAsyncDistributedLock;
+import com.lizhi.service.IDistributedLock;
+import com.lizhi.service.LockHandle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 异步锁
+ * <p>
+ * 与RedisDistributedLock使用同样的key和value格式（SET NX PX + 比较value删除），两者可以互斥同一个key。
+ * 加锁失败后登记锁释放通知，收到通知或者到了重试间隔（兜底）再重试，等待期间不占用任何线程。
+ * 定时线程只负责到点提交，访问redis在单独的线程池里执行；结果通过callbackExecutor（默认ForkJoinPool.commonPool）完成，
+ * 调用方串上的thenApply等回调不会在定时线程或者访问redis的线程里执行。
+ * 返回的LockHandle自己保存token，在哪个线程释放都可以。
+ */
+@Component
+public class RedisAsyncLock implements IAsyncDistributedLock {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RedisAsyncLock.class);
+
+    private static final int DEFAULT_THREADS = 2;
+
+    /**
+     * 访问redis的线程数
+     */
+    private static final int WORKER_THREADS = 8;
+
+    @Autowired
+    private RedisService redisService;
+
+    @Autowired
+    private LockReleaseNotifier notifier;
+
+    /**
+     * 收不到释放通知时的重试间隔ms
+     */
+    private volatile long retryIntervalMillis = IDistributedLock.SLEEP_MILLIS;
+
+    /**
+     * 完成返回的future，调用方的回调在这里执行
+     */
+    private volatile Executor callbackExecutor = ForkJoinPool.commonPool();
+
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(DEFAULT_THREADS, r -> {
+        Thread thread = new Thread(r, "redis-async-lock-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ThreadPoolExecutor workers;
+
+    public RedisAsyncLock() {
+        workers = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "redis-async-lock");
+            thread.setDaemon(true);
+            return thread;
+        });
+        workers.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public CompletableFuture<LockHandle> lockAsync(String key, long leaseMillis, long timeoutMillis) {
+        Attempt attempt = new Attempt(key, leaseMillis, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+        attempt.wake();
+        return attempt.future;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    public long getRetryIntervalMillis() {
+        return retryIntervalMillis;
+    }
+
+    /**
+     * @param retryIntervalMillis 收不到释放通知时的重试间隔ms，必须大于0，否则会一直重试到超时
+     */
+    public void setRetryIntervalMillis(long retryIntervalMillis) {
+        if (retryIntervalMillis <= 0) {
+            throw new IllegalArgumentException("retryIntervalMillis must be positive");
+        }
+        this.retryIntervalMillis = retryIntervalMillis;
+    }
+
+    public Executor getCallbackExecutor() {
+        return callbackExecutor;
+    }
+
+    /**
+     * @param callbackExecutor 完成future的线程池，调用方串上的非async回调在这里执行
+     */
+    public void setCallbackExecutor(Executor callbackExecutor) {
+        if (callbackExecutor == null) {
+            throw new IllegalArgumentException("callbackExecutor must not be null");
+        }
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * 一次异步加锁
+     * 锁只保护定时器、通知登记和状态，访问redis、完成future都在锁外；同一时刻只有一个线程在访问redis，
+     * 期间到达的通知记下来，这一轮失败后马上再试
+     */
+    private final class Attempt {
+
+        private final String key;
+
+        private final String token = UUID.randomUUID().toString();
+
+        private final long leaseMillis;
+
+        private final long deadline;
+
+        private final CompletableFuture<LockHandle> future = new CompletableFuture<>();
+
+        private LockReleaseNotifier.Registration registration;
+
+        private ScheduledFuture<?> timer;
+
+        /**
+         * 已经有结果（拿到、超时、出错或取消），不再重试
+         */
+        private boolean finished;
+
+        private boolean running;
+
+        private boolean rerun;
+
+        private Attempt(String key, long leaseMillis, long deadline) {
+            this.key = key;
+            this.leaseMillis = leaseMillis;
+            this.deadline = deadline;
+            // 取消后直接清理登记和定时器，不再访问redis
+            future.whenComplete((handle, e) -> {
+                if (future.isCancelled()) {
+                    cancelled();
+                }
+            });
+        }
+
+        private synchronized void cancelled() {
+            finish();
+        }
+
+        private void run() {
+            synchronized (this) {
+                if (timer != null) {
+                    timer.cancel(false);
+                    timer = null;
+                }
+                if (finished) {
+                    return;
+                }
+                if (running) {
+                    rerun = true;
+                    return;
+                }
+                running = true;
+            }
+            boolean locked;
+            try {
+                locked = redisService.redisLock(key, token, leaseMillis, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                if (end()) {
+                    complete(() -> future.completeExceptionally(e));
+                }
+                return;
+            }
+            if (locked) {
+                if (end()) {
+                    complete(() -> {
+                        if (!future.complete(new Handle(key, token))) {
+                            // 加锁的同时调用方取消了
+                            release(key, token);
+                        }
+                    });
+                } else {
+                    // 访问redis期间被取消
+                    release(key, token);
+                }
+                return;
+            }
+            retryLater();
+        }
+
+        /**
+         * 本次访问redis之后结束
+         *
+         * @return 之前已经被取消：false
+         */
+        private synchronized boolean end() {
+            running = false;
+            if (finished) {
+                return false;
+            }
+            finish();
+            return true;
+        }
+
+        private void retryLater() {
+            synchronized (this) {
+                running = false;
+                if (finished) {
+                    return;
+                }
+                long left = deadline - System.nanoTime();
+                if (left > 0) {
+                    if (registration == null) {
+                        registration = notifier.onRelease(key, this::wake);
+                        // 失败到登记之间的释放收不到通知，登记后马上再试一次
+                        rerun = true;
+                    }
+                    if (rerun) {
+                        rerun = false;
+                        wake();
+                    } else {
+                        timer = scheduler.schedule(this::wake, Math.min(TimeUnit.MILLISECONDS.toNanos(retryIntervalMillis), left), TimeUnit.NANOSECONDS);
+                    }
+                    return;
+                }
+                finish();
+            }
+            complete(() -> future.completeExceptionally(new TimeoutException("Failed to lock [" + key + "] in time")));
+        }
+
+        /**
+         * 提交到访问redis的线程池，定时线程和通知线程只做这一步
+         */
+        private void wake() {
+            workers.execute(this::run);
+        }
+
+        private void complete(Runnable action) {
+            try {
+                callbackExecutor.execute(action);
+            } catch (RejectedExecutionException e) {
+                // 不能丢：丢了future永远不会完成，拿到的锁也不会释放
+                action.run();
+            }
+        }
+
+        /**
+         * 调用时持有锁
+         */
+        private void finish() {
+            finished = true;
+            if (timer != null) {
+                timer.cancel(false);
+                timer = null;
+            }
+            if (registration != null) {
+                registration.close();
+                registration = null;
+            }
+        }
+    }
+
+    private boolean release(String key, String token) {
+        return redisService.releaseLock(key, token, LockReleaseNotifier.channel(key));
+    }
+
+    private final class Handle implements LockHandle {
+
+        private final String key;
+
+        private final String token;
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Handle(String key, String token) {
+            this.key = key;
+            this.token = token;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public boolean isHeld() {
+            return !released.get() && token.equals(redisService.get(key));
+        }
+
+        @Override
+        public boolean release() {
+            if (!released.compareAndSet(false, true)) {
+                return false;
+            }
+            try {
+                return RedisAsyncLock.this.release(key, token);
+            } catch (Exception e) {
+                LOGGER.error("Failed to releaseLock", e);
+                return false;
+            }
+        }
+    }
+}
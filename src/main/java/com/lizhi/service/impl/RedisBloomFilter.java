@@ -3,11 +3,15 @@ package com.lizhi.service.impl;
 import com.lizhi.service.IRedisBloomFilter;
 import com.lizhi.service.IRedisService;
 
+import com.lizhi.utils.BloomFilterStats;
+import com.lizhi.utils.HashStrategy;
+import com.lizhi.utils.Md5HashStrategy;
+import com.lizhi.utils.Murmur3HashStrategy;
+
 import java.nio.charset.Charset;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Collection;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 /**
  * from https://blog.csdn.net/qq_18495465/article/details/78500472
@@ -20,28 +24,24 @@ public class RedisBloomFilter<E> implements IRedisBloomFilter<E> {
 
     private long expireDays = 50 * 6000;
 
+    // collections at least this large are hashed in parallel
+    private static final int PARALLEL_HASHING_THRESHOLD = 1024;
+    // maximum number of bit operations sent in one pipeline by the bulk methods
+    private int batchSize = 10000;
+
+    // largest bitmap Redis can store: strings are limited to 512 MB
+    public static final long MAX_SIZE = 1L << 32;
+
     // total length of the Bloom filter
-    private int sizeOfBloomFilter;
+    private long sizeOfBloomFilter;
     // expected (maximum) number of elements to be added
-    private int expectedNumberOfFilterElements;
+    private long expectedNumberOfFilterElements;
     // number of hash functions
     private int numberOfHashFunctions;
     // encoding used for storing hash values as strings
     private final Charset charset = Charset.forName("UTF-8");
-    // MD5 gives good enough accuracy in most circumstances. Change to SHA1 if it's needed
-    private static final String hashName = "MD5";
-    private static final MessageDigest digestFunction;
-
-    // The digest method is reused between instances
-    static {
-        MessageDigest tmp;
-        try {
-            tmp = java.security.MessageDigest.getInstance(hashName);
-        } catch (NoSuchAlgorithmException e) {
-            tmp = null;
-        }
-        digestFunction = tmp;
-    }
+    // maps elements to bit offsets, Murmur3 unless an existing MD5 filter has to be read
+    private final HashStrategy hashStrategy;
 
     public RedisBloomFilter() {
         this(0.0001, 600000);
@@ -54,10 +54,26 @@ public class RedisBloomFilter<E> implements IRedisBloomFilter<E> {
      * @param n is the expected number of elements the filter will contain.
      * @param k is the number of hash functions used.
      */
-    public RedisBloomFilter(int m, int n, int k) {
+    public RedisBloomFilter(long m, long n, int k) {
+        this(m, n, k, Murmur3HashStrategy.INSTANCE);
+    }
+
+    /**
+     * Constructs an empty Bloom filter.
+     *
+     * @param m            is the total length of the Bloom filter.
+     * @param n            is the expected number of elements the filter will contain.
+     * @param k            is the number of hash functions used.
+     * @param hashStrategy maps elements to bit offsets.
+     */
+    public RedisBloomFilter(long m, long n, int k, HashStrategy hashStrategy) {
+        if (m <= 0 || m > MAX_SIZE) {
+            throw new IllegalArgumentException("size of bloom filter must be between 1 and " + MAX_SIZE + " bits, but was " + m);
+        }
         this.sizeOfBloomFilter = m;
         this.expectedNumberOfFilterElements = n;
         this.numberOfHashFunctions = k;
+        this.hashStrategy = hashStrategy;
     }
 
     /**
@@ -68,10 +84,24 @@ public class RedisBloomFilter<E> implements IRedisBloomFilter<E> {
      * @param falsePositiveProbability is the desired false positive probability.
      * @param expectedNumberOfElements is the expected number of elements in the Bloom filter.
      */
-    public RedisBloomFilter(double falsePositiveProbability, int expectedNumberOfElements) {
-        this((int) Math.ceil((int) Math.ceil(-(Math.log(falsePositiveProbability) / Math.log(2))) * expectedNumberOfElements / Math.log(2)), // m = ceil(kn/ln2)
+    public RedisBloomFilter(double falsePositiveProbability, long expectedNumberOfElements) {
+        this(falsePositiveProbability, expectedNumberOfElements, Murmur3HashStrategy.INSTANCE);
+    }
+
+    /**
+     * Constructs an empty Bloom filter with a given false positive probability.
+     * The size of bloom filter and the number of hash functions is estimated
+     * to match the false positive probability.
+     *
+     * @param falsePositiveProbability is the desired false positive probability.
+     * @param expectedNumberOfElements is the expected number of elements in the Bloom filter.
+     * @param hashStrategy             maps elements to bit offsets.
+     */
+    public RedisBloomFilter(double falsePositiveProbability, long expectedNumberOfElements, HashStrategy hashStrategy) {
+        this((long) Math.ceil((int) Math.ceil(-(Math.log(falsePositiveProbability) / Math.log(2))) * (double) expectedNumberOfElements / Math.log(2)), // m = ceil(kn/ln2)
                 expectedNumberOfElements,
-                (int) Math.ceil(-(Math.log(falsePositiveProbability) / Math.log(2)))); // k = ceil(-ln(f)/ln2)
+                (int) Math.ceil(-(Math.log(falsePositiveProbability) / Math.log(2))), // k = ceil(-ln(f)/ln2)
+                hashStrategy);
     }
 
     public void init(String key, long expireTime, TimeUnit timeUnit) {
@@ -86,6 +116,10 @@ public class RedisBloomFilter<E> implements IRedisBloomFilter<E> {
        this.redisService = redisService;
     }
 
+    protected IRedisService getRedisService() {
+        return redisService;
+    }
+
     /**
      * Adds an object to the Bloom filter. The output from the object's
      * toString() method is used as input to the hash functions.
@@ -93,19 +127,7 @@ public class RedisBloomFilter<E> implements IRedisBloomFilter<E> {
      * @param element is an element to register in the Bloom filter.
      */
     public void add(String key, E element) {
-        add(key, element.toString().getBytes(charset));
-    }
-
-    /**
-     * Adds an array of bytes to the Bloom filter.
-     *
-     * @param bytes array of bytes to add to the Bloom filter.
-     */
-    private void add(String key, byte[] bytes) {
-        int[] hashes = createHashes(bytes, numberOfHashFunctions);
-        for (int hash : hashes) {
-            redisService.setBit(key, Math.abs(hash % sizeOfBloomFilter), true);
-        }
+        setBits(key, indexes(element));
     }
 
     /**
@@ -114,8 +136,11 @@ public class RedisBloomFilter<E> implements IRedisBloomFilter<E> {
      * @param c Collection of elements.
      */
     public void addAll(String key, Collection<? extends E> c) {
-        for (E element : c) {
-            add(key, element);
+        long[][] hashed = indexes(c);
+        int elementsPerBatch = elementsPerBatch();
+        for (int from = 0; from < hashed.length; from += elementsPerBatch) {
+            int to = Math.min(from + elementsPerBatch, hashed.length);
+            setBits(key, concat(hashed, from, to));
         }
     }
 
@@ -128,21 +153,23 @@ public class RedisBloomFilter<E> implements IRedisBloomFilter<E> {
      * @return true if the element could have been inserted into the Bloom filter.
      */
     public boolean contains(String key, E element) {
-        return contains(key, element.toString().getBytes(charset));
+        return allSet(key, indexes(element));
     }
 
     /**
-     * Returns true if the array of bytes could have been inserted into the Bloom filter.
-     * Use getFalsePositiveProbability() to calculate the probability of this
-     * being correct.
+     * Returns true if all the elements of a Collection could have been inserted
+     * into the Bloom filter. Use getFalsePositiveProbability() to calculate the
+     * probability of this being correct.
      *
-     * @param bytes array of bytes to check.
-     * @return true if the array could have been inserted into the Bloom filter.
+     * @param c elements to check.
+     * @return true if all the elements in c could have been inserted into the Bloom filter.
      */
-    private boolean contains(String key, byte[] bytes) {
-        int[] hashes = createHashes(bytes, numberOfHashFunctions);
-        for (int hash : hashes) {
-            if (!redisService.getBit(key, Math.abs(hash % sizeOfBloomFilter))) {
+    public boolean containsAll(String key, Collection<? extends E> c) {
+        long[][] hashed = indexes(c);
+        int elementsPerBatch = elementsPerBatch();
+        for (int from = 0; from < hashed.length; from += elementsPerBatch) {
+            int to = Math.min(from + elementsPerBatch, hashed.length);
+            if (!allSet(key, concat(hashed, from, to))) {
                 return false;
             }
         }
@@ -150,16 +177,43 @@ public class RedisBloomFilter<E> implements IRedisBloomFilter<E> {
     }
 
     /**
-     * Returns true if all the elements of a Collection could have been inserted
-     * into the Bloom filter. Use getFalsePositiveProbability() to calculate the
-     * probability of this being correct.
+     * Checks every element of a Collection against the Bloom filter. Elements are
+     * hashed up front and their bit offsets are sent in pipelines of at most
+     * batchSize operations.
      *
      * @param c elements to check.
-     * @return true if all the elements in c could have been inserted into the Bloom filter.
+     * @return one result per element, in the iteration order of c.
      */
-    public boolean containsAll(String key, Collection<? extends E> c) {
-        for (E element : c) {
-            if (!contains(key, element)) {
+    public boolean[] containsEach(String key, Collection<? extends E> c) {
+        long[][] hashed = indexes(c);
+        boolean[] result = new boolean[hashed.length];
+        int elementsPerBatch = elementsPerBatch();
+        for (int from = 0; from < hashed.length; from += elementsPerBatch) {
+            int to = Math.min(from + elementsPerBatch, hashed.length);
+            boolean[] batch = allSet(key, hashed, from, to);
+            System.arraycopy(batch, 0, result, from, batch.length);
+        }
+        return result;
+    }
+
+    /**
+     * Sets the given bits in one round trip.
+     *
+     * @param indexes bit offsets of one or more elements.
+     * @return false if the write to Redis failed.
+     */
+    protected boolean setBits(String key, long[] indexes) {
+        return redisService.setBits(key, indexes, true);
+    }
+
+    /**
+     * Returns true if all the given bits are set, reading them in one round trip.
+     *
+     * @param indexes bit offsets of one or more elements.
+     */
+    protected boolean allSet(String key, long[] indexes) {
+        for (boolean bit : redisService.getBits(key, indexes)) {
+            if (!bit) {
                 return false;
             }
         }
@@ -167,45 +221,91 @@ public class RedisBloomFilter<E> implements IRedisBloomFilter<E> {
     }
 
     /**
-     * Generates digests based on the contents of an array of bytes and splits the result into 4-byte int's and store them in an array. The
-     * digest function is called until the required number of int's are produced. For each call to digest a salt
-     * is prepended to the data. The salt is increased by 1 for each call.
+     * Checks the elements hashed[from] to hashed[to - 1] in one round trip.
+     *
+     * @return one result per element.
+     */
+    protected boolean[] allSet(String key, long[][] hashed, int from, int to) {
+        boolean[] bits = redisService.getBits(key, concat(hashed, from, to));
+        boolean[] result = new boolean[to - from];
+        int bit = 0;
+        for (int i = from; i < to; i++) {
+            boolean present = true;
+            for (int j = 0; j < hashed[i].length; j++) {
+                present &= bits[bit++];
+            }
+            result[i - from] = present;
+        }
+        return result;
+    }
+
+    /**
+     * Maps an element to the positions of its bits in the Bloom filter. The output
+     * from the object's toString() method is used as input to the hash functions.
+     *
+     * @param element element to hash.
+     * @return bit offsets, one per hash function.
+     */
+    protected long[] indexes(E element) {
+        return hashStrategy.indexes(element.toString().getBytes(charset), numberOfHashFunctions, sizeOfBloomFilter);
+    }
+
+    /**
+     * Hashes all elements of a Collection, in parallel for large collections.
+     *
+     * @param c elements to hash.
+     * @return bit offsets of each element, in the iteration order of c.
+     */
+    protected long[][] indexes(Collection<? extends E> c) {
+        Stream<? extends E> stream = c.size() >= PARALLEL_HASHING_THRESHOLD ? c.parallelStream() : c.stream();
+        return stream.map(this::indexes).toArray(long[][]::new);
+    }
+
+    protected int elementsPerBatch() {
+        return Math.max(1, batchSize / numberOfHashFunctions);
+    }
+
+    protected static long[] concat(long[][] hashed, int from, int to) {
+        int length = 0;
+        for (int i = from; i < to; i++) {
+            length += hashed[i].length;
+        }
+        long[] result = new long[length];
+        int pos = 0;
+        for (int i = from; i < to; i++) {
+            System.arraycopy(hashed[i], 0, result, pos, hashed[i].length);
+            pos += hashed[i].length;
+        }
+        return result;
+    }
+
+    /**
+     * Generates the int-sized MD5 hashes used by earlier versions of this class.
      *
      * @param data   specifies input data.
      * @param hashes number of hashes/int's to produce.
      * @return array of int-sized hashes
+     * @deprecated use {@link Md5HashStrategy#createHashes(byte[], int)}
      */
+    @Deprecated
     public static int[] createHashes(byte[] data, int hashes) {
-        int[] result = new int[hashes];
-
-        int k = 0;
-        byte salt = 0;
-        while (k < hashes) {
-            byte[] digest;
-            synchronized (digestFunction) {
-                digestFunction.update(salt);
-                salt++;
-                digest = digestFunction.digest(data);
-            }
+        return Md5HashStrategy.createHashes(data, hashes);
+    }
 
-            for (int i = 0; i < digest.length / 4 && k < hashes; i++) {
-                int h = 0;
-                for (int j = (i * 4); j < (i * 4) + 4; j++) {
-                    h <<= 8;
-                    h |= ((int) digest[j]) & 0xFF;
-                }
-                result[k] = h;
-                k++;
-            }
-        }
-        return result;
+    /**
+     * Counts the set bits of the filter with BITCOUNT and estimates how full it is.
+     *
+     * @return fill ratio, estimated number of elements and current false positive probability.
+     */
+    public BloomFilterStats stats(String key) {
+        return new BloomFilterStats(key, sizeOfBloomFilter, numberOfHashFunctions, expectedNumberOfFilterElements, redisService.bitCount(key));
     }
 
-    public int getSizeOfBloomFilter() {
+    public long getSizeOfBloomFilter() {
         return this.sizeOfBloomFilter;
     }
 
-    public int getExpectedNumberOfElements() {
+    public long getExpectedNumberOfElements() {
         return this.expectedNumberOfFilterElements;
     }
 
@@ -213,6 +313,24 @@ public class RedisBloomFilter<E> implements IRedisBloomFilter<E> {
         return this.numberOfHashFunctions;
     }
 
+    public HashStrategy getHashStrategy() {
+        return this.hashStrategy;
+    }
+
+    public int getBatchSize() {
+        return this.batchSize;
+    }
+
+    /**
+     * @param batchSize maximum number of bit operations sent in one pipeline by addAll/containsAll/containsEach.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        this.batchSize = batchSize;
+    }
+
     /**
      * Compares the contents of two instances to see if they are equal.
      *
@@ -227,7 +345,7 @@ public class RedisBloomFilter<E> implements IRedisBloomFilter<E> {
         if (getClass() != obj.getClass()) {
             return false;
         }
-        final RedisBloomFilter<E> other = (RedisBloomFilter<E>) obj;
+        final RedisBloomFilter<?> other = (RedisBloomFilter<?>) obj;
         if (this.sizeOfBloomFilter != other.sizeOfBloomFilter) {
             return false;
         }
@@ -237,6 +355,9 @@ public class RedisBloomFilter<E> implements IRedisBloomFilter<E> {
         if (this.numberOfHashFunctions != other.numberOfHashFunctions) {
             return false;
         }
+        if (this.hashStrategy != other.hashStrategy) {
+            return false;
+        }
         return true;
     }
 
@@ -248,9 +369,10 @@ public class RedisBloomFilter<E> implements IRedisBloomFilter<E> {
     @Override
     public int hashCode() {
         int hash = 7;
-        hash = 61 * hash + this.sizeOfBloomFilter;
-        hash = 61 * hash + this.expectedNumberOfFilterElements;
+        hash = 61 * hash + Long.hashCode(this.sizeOfBloomFilter);
+        hash = 61 * hash + Long.hashCode(this.expectedNumberOfFilterElements);
         hash = 61 * hash + this.numberOfHashFunctions;
+        hash = 61 * hash + this.hashStrategy.hashCode();
         return hash;
     }
 }
@@ -0,0 +1,335 @@
+package com.lizhi.service.impl;
+
+import com.lizhi.service.IRedisCuckooFilter;
+import com.lizhi.service.IRedisService;
+import com.lizhi.utils.Murmur3HashStrategy;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * redis实现的布谷鸟过滤
+ * <p>
+ * 过滤器是一个字符串key，分为numberOfBuckets个桶，每个桶4个16位指纹（BITFIELD u16），0表示空位。
+ * 元素的两个候选桶为 i1 = hash & (n - 1)，i2 = i1 ^ (fingerprint * 0x5bd1e995 & (n - 1))，
+ * 桶数为2的幂，所以由任意一个桶和指纹都能算出另一个桶，搬迁时不需要原始元素。
+ * <p>
+ * add/contains/remove都在一次EVALSHA中完成，add在两个桶都满时在脚本内随机踢出指纹搬迁到其备用桶，
+ * 超过maxKicks次仍失败则撤销本次所有搬迁并返回false，过滤器内容保持不变。
+ * 16位指纹、每桶4个时容错率约为 8 / 65536 ≈ 0.012%。需要redis 3.2及以上版本。
+ *
+ * @param <E>
+ */
+public class RedisCuckooFilter<E> implements IRedisCuckooFilter<E> {
+
+    public static final int BUCKET_SIZE = 4;
+
+    public static final int FINGERPRINT_BITS = 16;
+
+    /**
+     * 指纹的哈希乘数，脚本中计算备用桶时使用同一个值
+     */
+    private static final long ALT_MULTIPLIER = 0x5bd1e995L;
+
+    /**
+     * 最大桶数，位图不超过2^32位
+     */
+    private static final long MAX_BUCKETS = RedisBloomFilter.MAX_SIZE / (BUCKET_SIZE * FINGERPRINT_BITS);
+
+    /**
+     * 装载率，达到容量时桶的占用率
+     */
+    private static final double LOAD_FACTOR = 0.95;
+
+    private static final String BUCKET_FUNCTION;
+
+    /**
+     * ARGV[1]为桶数，ARGV[2]为最大搬迁次数，其后每个元素依次为指纹、i1、i2，返回每个元素的结果
+     */
+    private static final String ADD_LUA;
+
+    /**
+     * ARGV每个元素依次为指纹、i1、i2，返回每个元素的结果
+     */
+    private static final String CONTAINS_LUA;
+
+    /**
+     * ARGV每个元素依次为指纹、i1、i2，返回每个元素的结果
+     */
+    private static final String REMOVE_LUA;
+
+    private static final String INIT_LUA;
+
+    static {
+        StringBuilder sb = new StringBuilder();
+        // 读取桶b的4个指纹，桶b的第s个位置为 #(b * 4 + s)
+        sb.append("local function bucket(b) ");
+        sb.append("    return redis.call('bitfield', KEYS[1], ");
+        sb.append("        'GET', 'u16', '#' .. (b * 4), 'GET', 'u16', '#' .. (b * 4 + 1), ");
+        sb.append("        'GET', 'u16', '#' .. (b * 4 + 2), 'GET', 'u16', '#' .. (b * 4 + 3)) ");
+        sb.append("end ");
+        // 写入指纹，返回原来的值
+        sb.append("local function put(b, s, fp) ");
+        sb.append("    return redis.call('bitfield', KEYS[1], 'SET', 'u16', '#' .. (b * 4 + s), fp)[1] ");
+        sb.append("end ");
+        BUCKET_FUNCTION = sb.toString();
+
+        sb = new StringBuilder(BUCKET_FUNCTION);
+        sb.append("local n = tonumber(ARGV[1]) ");
+        sb.append("local maxKicks = tonumber(ARGV[2]) ");
+        sb.append("local function insert(b, fp) ");
+        sb.append("    local v = bucket(b) ");
+        sb.append("    for s = 1, 4 do ");
+        sb.append("        if v[s] == 0 then ");
+        sb.append("            put(b, s - 1, fp) ");
+        sb.append("            return true ");
+        sb.append("        end ");
+        sb.append("    end ");
+        sb.append("    return false ");
+        sb.append("end ");
+        sb.append("local result = {} ");
+        sb.append("for i = 3, #ARGV, 3 do ");
+        sb.append("    local fp = tonumber(ARGV[i]) ");
+        sb.append("    local i1 = tonumber(ARGV[i + 1]) ");
+        sb.append("    local i2 = tonumber(ARGV[i + 2]) ");
+        sb.append("    local ok = insert(i1, fp) or insert(i2, fp) ");
+        sb.append("    if not ok then ");
+        sb.append("        local b = i1 ");
+        sb.append("        if math.random(2) == 2 then ");
+        sb.append("            b = i2 ");
+        sb.append("        end ");
+        sb.append("        local undo = {} ");
+        sb.append("        for kick = 1, maxKicks do ");
+        sb.append("            local s = math.random(4) - 1 ");
+        sb.append("            local victim = put(b, s, fp) ");
+        sb.append("            undo[#undo + 1] = {b, s, victim} ");
+        sb.append("            fp = victim ");
+        sb.append("            b = bit.bxor(b, (fp * 1540483477) % n) ");
+        sb.append("            if insert(b, fp) then ");
+        sb.append("                ok = true ");
+        sb.append("                break ");
+        sb.append("            end ");
+        sb.append("        end ");
+        sb.append("        if not ok then ");
+        sb.append("            for u = #undo, 1, -1 do ");
+        sb.append("                put(undo[u][1], undo[u][2], undo[u][3]) ");
+        sb.append("            end ");
+        sb.append("        end ");
+        sb.append("    end ");
+        sb.append("    if ok then ");
+        sb.append("        result[#result + 1] = 1 ");
+        sb.append("    else ");
+        sb.append("        result[#result + 1] = 0 ");
+        sb.append("    end ");
+        sb.append("end ");
+        sb.append("return result ");
+        ADD_LUA = sb.toString();
+
+        sb = new StringBuilder();
+        sb.append("local result = {} ");
+        sb.append("for i = 1, #ARGV, 3 do ");
+        sb.append("    local fp = tonumber(ARGV[i]) ");
+        sb.append("    local b1 = tonumber(ARGV[i + 1]) * 4 ");
+        sb.append("    local b2 = tonumber(ARGV[i + 2]) * 4 ");
+        sb.append("    local v = redis.call('bitfield', KEYS[1], ");
+        sb.append("        'GET', 'u16', '#' .. b1, 'GET', 'u16', '#' .. (b1 + 1), ");
+        sb.append("        'GET', 'u16', '#' .. (b1 + 2), 'GET', 'u16', '#' .. (b1 + 3), ");
+        sb.append("        'GET', 'u16', '#' .. b2, 'GET', 'u16', '#' .. (b2 + 1), ");
+        sb.append("        'GET', 'u16', '#' .. (b2 + 2), 'GET', 'u16', '#' .. (b2 + 3)) ");
+        sb.append("    local present = 0 ");
+        sb.append("    for s = 1, 8 do ");
+        sb.append("        if v[s] == fp then ");
+        sb.append("            present = 1 ");
+        sb.append("            break ");
+        sb.append("        end ");
+        sb.append("    end ");
+        sb.append("    result[#result + 1] = present ");
+        sb.append("end ");
+        sb.append("return result ");
+        CONTAINS_LUA = sb.toString();
+
+        sb = new StringBuilder(BUCKET_FUNCTION);
+        sb.append("local function delete(b, fp) ");
+        sb.append("    local v = bucket(b) ");
+        sb.append("    for s = 1, 4 do ");
+        sb.append("        if v[s] == fp then ");
+        sb.append("            put(b, s - 1, 0) ");
+        sb.append("            return true ");
+        sb.append("        end ");
+        sb.append("    end ");
+        sb.append("    return false ");
+        sb.append("end ");
+        sb.append("local result = {} ");
+        sb.append("for i = 1, #ARGV, 3 do ");
+        sb.append("    local fp = tonumber(ARGV[i]) ");
+        sb.append("    if delete(tonumber(ARGV[i + 1]), fp) or delete(tonumber(ARGV[i + 2]), fp) then ");
+        sb.append("        result[#result + 1] = 1 ");
+        sb.append("    else ");
+        sb.append("        result[#result + 1] = 0 ");
+        sb.append("    end ");
+        sb.append("end ");
+        sb.append("return result ");
+        REMOVE_LUA = sb.toString();
+
+        sb = new StringBuilder();
+        // INCRBY 0 只在key不存在时创建，不修改已有的指纹
+        sb.append("redis.call('bitfield', KEYS[1], 'INCRBY', 'u16', '#0', 0) ");
+        sb.append("if tonumber(ARGV[1]) > 0 then ");
+        sb.append("    redis.call('pexpire', KEYS[1], ARGV[1]) ");
+        sb.append("end ");
+        sb.append("return 1 ");
+        INIT_LUA = sb.toString();
+    }
+
+    private IRedisService redisService;
+
+    private long expireDays = 50 * 6000;
+
+    private final Charset charset = Charset.forName("UTF-8");
+
+    private final long numberOfBuckets;
+
+    /**
+     * 桶满时最多搬迁的次数
+     */
+    private int maxKicks = 500;
+
+    /**
+     * 一次EVALSHA最多处理的元素个数
+     */
+    private int batchSize = 1000;
+
+    public RedisCuckooFilter() {
+        this(600000);
+    }
+
+    /**
+     * @param capacity 容量，桶数按95%装载率取2的幂
+     */
+    public RedisCuckooFilter(long capacity) {
+        long buckets = Long.highestOneBit(Math.max(1, (long) Math.ceil(capacity / LOAD_FACTOR / BUCKET_SIZE)) - 1) << 1;
+        if (buckets > MAX_BUCKETS) {
+            throw new IllegalArgumentException("cuckoo filter supports at most " + (long) (MAX_BUCKETS * BUCKET_SIZE * LOAD_FACTOR) + " elements, but was " + capacity);
+        }
+        this.numberOfBuckets = Math.max(1, buckets);
+    }
+
+    @Override
+    public void setRedisService(IRedisService redisService) {
+        this.redisService = redisService;
+    }
+
+    @Override
+    public void init(String key, long expireTime, TimeUnit timeUnit) {
+        redisService.eval(INIT_LUA, Collections.singletonList(key), Collections.singletonList(String.valueOf(timeUnit.toMillis(expireTime))));
+    }
+
+    @Override
+    public void init(String key) {
+        init(key, expireDays, TimeUnit.DAYS);
+    }
+
+    @Override
+    public boolean add(String key, E element) {
+        return addAll(key, Collections.singletonList(element))[0];
+    }
+
+    @Override
+    public boolean[] addAll(String key, Collection<? extends E> c) {
+        return execute(ADD_LUA, key, c, String.valueOf(numberOfBuckets), String.valueOf(maxKicks));
+    }
+
+    @Override
+    public boolean contains(String key, E element) {
+        return containsEach(key, Collections.singletonList(element))[0];
+    }
+
+    @Override
+    public boolean containsAll(String key, Collection<? extends E> c) {
+        for (boolean present : containsEach(key, c)) {
+            if (!present) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean[] containsEach(String key, Collection<? extends E> c) {
+        return execute(CONTAINS_LUA, key, c);
+    }
+
+    @Override
+    public boolean remove(String key, E element) {
+        return removeAll(key, Collections.singletonList(element))[0];
+    }
+
+    @Override
+    public boolean[] removeAll(String key, Collection<? extends E> c) {
+        return execute(REMOVE_LUA, key, c);
+    }
+
+    /**
+     * 按batchSize分批执行脚本，每个元素的参数为指纹、i1、i2，排在header之后
+     */
+    private boolean[] execute(String script, String key, Collection<? extends E> c, String... header) {
+        List<String> keys = Collections.singletonList(key);
+        boolean[] result = new boolean[c.size()];
+        List<String> args = new ArrayList<>();
+        int from = 0;
+        int position = 0;
+        for (E element : c) {
+            if (args.isEmpty()) {
+                Collections.addAll(args, header);
+            }
+            long hash = Murmur3HashStrategy.hash64(element.toString().getBytes(charset), 0);
+            long mask = numberOfBuckets - 1;
+            long fingerprint = Math.max(1, hash >>> (64 - FINGERPRINT_BITS));
+            long i1 = hash & mask;
+            long i2 = i1 ^ (fingerprint * ALT_MULTIPLIER & mask);
+            args.add(String.valueOf(fingerprint));
+            args.add(String.valueOf(i1));
+            args.add(String.valueOf(i2));
+            position++;
+            if (position - from == batchSize || position == result.length) {
+                List<?> results = (List<?>) redisService.eval(script, keys, args);
+                for (int i = from; i < position; i++) {
+                    result[i] = (Long) results.get(i - from) > 0;
+                }
+                from = position;
+                args.clear();
+            }
+        }
+        return result;
+    }
+
+    public long getNumberOfBuckets() {
+        return numberOfBuckets;
+    }
+
+    public int getMaxKicks() {
+        return maxKicks;
+    }
+
+    public void setMaxKicks(int maxKicks) {
+        this.maxKicks = maxKicks;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize 一次EVALSHA最多处理的元素个数
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        this.batchSize = batchSize;
+    }
+}
@@ -1,15 +1,24 @@
 package com.lizhi.service.impl;
 
 import com.lizhi.service.AbstractDistributedLock;
+import com.lizhi.utils.LockMetricsRecorder;
 import com.lizhi.utils.RetryCallBack;
 import com.lizhi.utils.RetryTemplate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Primary;
 import org.springframework.stereotype.Component;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @author https://github.com/lizhixiong1994
@@ -30,7 +39,7 @@ import java.util.concurrent.TimeUnit;
  * <p>
  * 线程T1业务操作完毕，释放锁（其实是释放的线程T2的锁）
  * <p>
- * 解决： threadLocal保存uuid，作为value传入，解锁时对比uuid值，基本可以保证加锁解锁都是同一人
+ * 解决： threadLocal按key保存uuid，作为value传入，解锁时对比uuid值，基本可以保证加锁解锁都是同一人（同一线程持有多把锁互不覆盖）
  * <p>
  * 3. 集群的极端情况系下，会有如下问题
  * <p>
@@ -41,44 +50,169 @@ import java.util.concurrent.TimeUnit;
  * 线程T2获取锁，会从slave节点上去判断锁是否存在，由于Redis的master slave复制是异步的，所以此时线程T2可能成功获取到锁
  * <p>
  * 解决：建议lock锁后，再次确认lock是不是自己的 isLock（key），比较耗性能。双重检查
+ * <p>
+ * 4. 大量线程等待同一把锁时，按间隔轮询会持续打redis，锁释放后还要等到下一次轮询才能拿到
+ * <p>
+ * 解决：释放锁时发布通知（LockReleaseNotifier），等待的线程收到通知立即重试，sleepMillis只作为收不到通知时的超时兜底
+ * <p>
+ * 5. 有效期设长了，进程挂掉后锁很久才能释放；设短了，长任务执行到一半锁就过期了
+ * <p>
+ * 解决：autoRenew加锁，由看门狗（LockWatchdog）在持锁期间定期续期，有效期可以设得很短
+ * <p>
+ * 6. 同一个JVM里很多线程抢同一把锁，每个线程都去redis轮询
+ * <p>
+ * 解决：开启localCoalescing后本地按key排队，同一JVM同一个key只有排在最前面的线程去redis竞争；
+ * 开启localHandover后，释放时本地有人在等就直接交出租约，不用先释放再去redis抢。
+ * 默认关闭：本地排队一直持续到releaseLock，依赖有效期自动释放（不调用releaseLock）的用法不能开启
+ * <p>
+ * 7. 不知道哪些锁竞争激烈，也不知道有效期设得是否合适
+ * <p>
+ * 解决：每次加锁、释放都交给LockMetricsRecorder记录耗时、尝试次数、超时、持有时长，释放脚本返回0记为租期提前过期；
+ * 默认不记录（LockMetricsRecorder.NOOP），容器里有LockMetricsRecorder的bean时使用它，如HistogramLockMetricsRecorder；
+ * 埋点抛出的异常只打日志，不影响加锁、释放
  */
+@Primary
 @Component
 public class RedisDistributedLock extends AbstractDistributedLock {
 
     @Autowired
     private RedisService redisService;
 
-    private static final ThreadLocal<String> threadLocal = new ThreadLocal<>();
+    private static final ThreadLocal<Map<String, String>> threadLocal = ThreadLocal.withInitial(HashMap::new);
+
+    /**
+     * key -> 拿到锁的时间（nanoTime），用于统计持有时长
+     */
+    private static final ThreadLocal<Map<String, Long>> acquiredAt = ThreadLocal.withInitial(HashMap::new);
 
     private static final Logger LOGGER = LoggerFactory.getLogger(RedisDistributedLock.class);
 
+    @Autowired
+    private LockReleaseNotifier notifier;
+
+    @Autowired
+    private LockWatchdog watchdog;
+
+    /**
+     * key -> 本地排队
+     */
+    private final Map<String, LocalEntry> localEntries = new ConcurrentHashMap<>();
+
+    private volatile boolean localCoalescing = false;
+
+    private volatile boolean localHandover = false;
+
+    private volatile int maxLocalHandovers = 16;
+
+    private volatile LockMetricsRecorder metricsRecorder = LockMetricsRecorder.NOOP;
+
     @Override
     public boolean lock(String key, long expire, int retryTimes, long sleepMillis) {
-        final String uuid = UUID.randomUUID().toString();
-        Boolean execute = new RetryTemplate(retryTimes, sleepMillis) {
-            @Override
-            public <T> void callbackSucceeded(T result) {
-                super.callbackSucceeded(result);
-                threadLocal.set(uuid);//锁成功则set
-            }
-        }.execute(new RetryCallBack<Boolean>() {
-            @Override
-            public Boolean doWithRetry() {
-                return redisService.redisLock(key, uuid, expire, TimeUnit.MILLISECONDS);
+        return lock(key, expire, retryTimes, sleepMillis, false);
+    }
+
+    @Override
+    public boolean lock(String key, long expire, int retryTimes, long sleepMillis, boolean autoRenew) {
+        return lock(key, expire, retryTimes, sleepMillis, RetryTemplate.totalWaitMillis(retryTimes, sleepMillis), autoRenew);
+    }
+
+    @Override
+    public boolean tryLock(String key, long expire, long waitMillis, long sleepMillis, boolean autoRenew) {
+        return lock(key, expire, Integer.MAX_VALUE, sleepMillis, waitMillis, autoRenew);
+    }
+
+    /**
+     * @param timeoutMillis 总等待时长ms，负数不限时
+     */
+    private boolean lock(String key, long expire, int retryTimes, long sleepMillis, long timeoutMillis, boolean autoRenew) {
+        final long start = System.nanoTime();
+        final int[] attempts = new int[1];
+        boolean acquired = false;
+        try {
+            acquired = acquire(key, expire, retryTimes, sleepMillis, timeoutMillis, autoRenew, attempts);
+            return acquired;
+        } finally {
+            long now = System.nanoTime();
+            if (acquired) {
+                acquiredAt.get().put(key, now);
             }
+            recordAcquire(key, acquired, attempts[0], now - start);
+        }
+    }
 
-            @Override
-            public boolean isComplete(Boolean result) {
-                return result;
+    private boolean acquire(String key, long expire, int retryTimes, long sleepMillis, long timeoutMillis, boolean autoRenew, int[] attempts) {
+        if (!localCoalescing) {
+            return lockRemote(key, expire, retryTimes, sleepMillis, timeoutMillis, autoRenew, attempts);
+        }
+        LocalEntry entry = retainLocal(key);
+        boolean acquired = false;
+        try {
+            long start = System.nanoTime();
+            // 本地等待与redis重试共用同一个时限
+            if (!entry.lock.tryLock(timeoutMillis < 0 ? Long.MAX_VALUE : timeoutMillis, TimeUnit.MILLISECONDS)) {
+                return false;
             }
-        });
+            try {
+                acquired = takeOver(key, entry, expire, autoRenew)
+                        || lockRemote(key, expire, remainingRetryTimes(retryTimes, sleepMillis, start), sleepMillis,
+                        remainingMillis(timeoutMillis, start), autoRenew, attempts);
+            } finally {
+                if (!acquired) {
+                    entry.lock.unlock();
+                }
+            }
+            return acquired;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            if (!acquired) {
+                releaseLocal(key);
+            }
+        }
+    }
+
+    /**
+     * @param attempts attempts[0]累加访问redis的次数
+     */
+    private boolean lockRemote(String key, long expire, int retryTimes, long sleepMillis, long timeoutMillis, boolean autoRenew, int[] attempts) {
+        final String uuid = UUID.randomUUID().toString();
+        try (LockReleaseNotifier.Waiter waiter = notifier.newWaiter(key)) {
+            Boolean execute = new RetryTemplate(retryTimes, sleepMillis) {
+                @Override
+                public <T> void callbackSucceeded(T result) {
+                    super.callbackSucceeded(result);
+                    threadLocal.get().put(key, uuid);//锁成功则set
+                    if (autoRenew) {
+                        watchdog.watch(key, uuid, expire);
+                    }
+                }
+
+                @Override
+                public void waitForRetry(long millis) throws InterruptedException {
+                    waiter.await(millis);//锁释放时提前醒来
+                }
+            }.forLock(sleepMillis, timeoutMillis).execute(new RetryCallBack<Boolean>() {
+                @Override
+                public Boolean doWithRetry() {
+                    waiter.mark();
+                    attempts[0]++;
+                    return redisService.redisLock(key, uuid, expire, TimeUnit.MILLISECONDS);
+                }
+
+                @Override
+                public boolean isComplete(Boolean result) {
+                    return result;
+                }
+            });
 
-        return execute != null && execute != false;
+            return execute != null && execute != false;
+        }
     }
 
     @Override
     public boolean isLock(String key) {
-        String uuid = threadLocal.get();
+        String uuid = threadLocal.get().get(key);
         if (uuid != null && uuid.equals(redisService.get(key))) {
             return true;
         }
@@ -87,18 +221,234 @@ public class RedisDistributedLock extends AbstractDistributedLock {
 
     @Override
     public boolean releaseLock(String key) {
+        // 释放锁的时候，有可能因为持锁之后方法执行时间大于锁的有效期，此时有可能已经被另外一个线程持有锁，所以不能直接删除
+        // 首先判断锁的持有者是不是自己
+        String uuid = threadLocal.get().remove(key);
+        Long lockedAt = acquiredAt.get().remove(key);
+        // 不看开关：加锁后才关闭的情况也要释放本地排队
+        LocalEntry entry = localEntries.get(key);
+        if (entry == null || !entry.lock.isHeldByCurrentThread()) {
+            return releaseRemote(key, uuid, lockedAt);
+        }
+        try {
+            // 本地还有线程在等，租约直接交给它，不经过redis
+            if (uuid != null && localHandover && entry.lock.hasQueuedThreads() && entry.handovers < maxLocalHandovers) {
+                entry.handovers++;
+                entry.handover.set(new Handover(uuid, watchdog.isWatched(key, uuid)));
+                if (lockedAt != null) {
+                    recordRelease(key, System.nanoTime() - lockedAt, false);
+                }
+                return true;
+            }
+            entry.handovers = 0;
+            return releaseRemote(key, uuid, lockedAt);
+        } finally {
+            entry.lock.unlock();
+            releaseLocal(key);
+        }
+    }
+
+    /**
+     * @param lockedAt 拿到锁的时间，null不记录持有时长（没人接手的交接租约）
+     */
+    private boolean releaseRemote(String key, String uuid, Long lockedAt) {
         try {
-            // 释放锁的时候，有可能因为持锁之后方法执行时间大于锁的有效期，此时有可能已经被另外一个线程持有锁，所以不能直接删除
-            // 首先判断锁的持有者是不是自己
-            String uuid = threadLocal.get();
             if (uuid == null) {
                 LOGGER.error("Failed to releaseLock ,because UIID is null , key:[{}]", key);
                 return true;
             }
-            return redisService.releaseLock(key, uuid);
+            watchdog.unwatch(key, uuid);
+            Long result = (Long) redisService.eval(RedisService.UNLOCK_AND_PUBLISH_LUA, Collections.singletonList(key),
+                    Arrays.asList(uuid, LockReleaseNotifier.channel(key)));
+            boolean released = result != null && result > 0;
+            if (lockedAt != null) {
+                // 返回0：锁已经过期，可能已经被别人拿走
+                recordRelease(key, System.nanoTime() - lockedAt, !released);
+            }
+            return released;
         } catch (Exception e) {
             LOGGER.error("Failed to releaseLock", e);
             return false;
         }
     }
+
+    /**
+     * 埋点失败不能影响锁：已经拿到的锁如果因此抛出，调用方不会释放
+     */
+    private void recordAcquire(String key, boolean acquired, int attempts, long latencyNanos) {
+        try {
+            metricsRecorder.onAcquire(key, acquired, attempts, latencyNanos);
+        } catch (Exception e) {
+            LOGGER.error("Failed to record acquire, key:[{}]", key, e);
+        }
+    }
+
+    private void recordRelease(String key, long holdNanos, boolean leaseExpired) {
+        try {
+            metricsRecorder.onRelease(key, holdNanos, leaseExpired);
+        } catch (Exception e) {
+            LOGGER.error("Failed to record release, key:[{}]", key, e);
+        }
+    }
+
+    /**
+     * 接手本地上一个持有者留下的租约
+     * 双方都autoRenew时租约由看门狗续着，不访问redis；否则比较value后把有效期续到本次的expire，一次往返
+     *
+     * @return 没有可接手的租约或租约已经丢失：false
+     */
+    private boolean takeOver(String key, LocalEntry entry, long expire, boolean autoRenew) {
+        Handover handover = entry.handover.getAndSet(null);
+        if (handover == null) {
+            return false;
+        }
+        boolean valid;
+        if (handover.watched && autoRenew) {
+            valid = watchdog.isWatched(key, handover.uuid);
+        } else {
+            valid = redisService.renewLocks(new String[]{key}, new String[]{handover.uuid}, new long[]{expire})[0];
+            if (handover.watched) {
+                watchdog.unwatch(key, handover.uuid);
+            }
+            if (valid && autoRenew) {
+                watchdog.watch(key, handover.uuid, expire);
+            }
+        }
+        if (!valid) {
+            entry.handovers = 0;
+            return false;
+        }
+        threadLocal.get().put(key, handover.uuid);
+        return true;
+    }
+
+    private LocalEntry retainLocal(String key) {
+        return localEntries.compute(key, (k, entry) -> {
+            if (entry == null) {
+                entry = new LocalEntry();
+            }
+            entry.refs++;
+            return entry;
+        });
+    }
+
+    private void releaseLocal(String key) {
+        final Handover[] orphan = new Handover[1];
+        localEntries.computeIfPresent(key, (k, entry) -> {
+            if (--entry.refs > 0) {
+                return entry;
+            }
+            orphan[0] = entry.handover.getAndSet(null);
+            return null;
+        });
+        // 交出租约后等待的线程都放弃了，没人接手，释放redis上的锁
+        if (orphan[0] != null) {
+            releaseRemote(key, orphan[0].uuid, null);
+        }
+    }
+
+    /**
+     * 本地等待之后剩下的时限，负数仍表示不限时
+     */
+    private static long remainingMillis(long timeoutMillis, long start) {
+        if (timeoutMillis < 0) {
+            return timeoutMillis;
+        }
+        return Math.max(timeoutMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), 0);
+    }
+
+    /**
+     * 本地等待已经用掉的重试次数从redis重试次数中扣除
+     */
+    private static int remainingRetryTimes(int retryTimes, long sleepMillis, long start) {
+        if (retryTimes == Integer.MAX_VALUE || sleepMillis <= 0) {
+            return retryTimes;
+        }
+        long used = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) / sleepMillis;
+        return (int) Math.max(retryTimes - used, 1);
+    }
+
+    public boolean isLocalCoalescing() {
+        return localCoalescing;
+    }
+
+    /**
+     * @param localCoalescing 同一JVM内同一个key只有一个线程去redis竞争，其他线程在本地排队；
+     *                        本地排队持续到releaseLock，每次加锁都必须释放
+     */
+    public void setLocalCoalescing(boolean localCoalescing) {
+        this.localCoalescing = localCoalescing;
+    }
+
+    public boolean isLocalHandover() {
+        return localHandover;
+    }
+
+    /**
+     * @param localHandover 释放时本地有线程在等就直接把租约交给它，不释放redis上的锁
+     */
+    public void setLocalHandover(boolean localHandover) {
+        this.localHandover = localHandover;
+    }
+
+    public int getMaxLocalHandovers() {
+        return maxLocalHandovers;
+    }
+
+    /**
+     * @param maxLocalHandovers 连续本地交接的上限，超过后释放redis上的锁，让其他JVM有机会拿到
+     */
+    public void setMaxLocalHandovers(int maxLocalHandovers) {
+        this.maxLocalHandovers = maxLocalHandovers;
+    }
+
+    public LockMetricsRecorder getMetricsRecorder() {
+        return metricsRecorder;
+    }
+
+    /**
+     * @param metricsRecorder 加锁、释放的监控埋点，LockMetricsRecorder.NOOP关闭
+     */
+    @Autowired(required = false)
+    public void setMetricsRecorder(LockMetricsRecorder metricsRecorder) {
+        this.metricsRecorder = metricsRecorder;
+    }
+
+    /**
+     * 本地每个key一个，没有线程使用时移除
+     */
+    private static final class LocalEntry {
+
+        /**
+         * 公平锁，本地按到达顺序交接
+         */
+        private final ReentrantLock lock = new ReentrantLock(true);
+
+        private final AtomicReference<Handover> handover = new AtomicReference<>();
+
+        /**
+         * 只在map的compute里修改
+         */
+        private int refs;
+
+        /**
+         * 持有lock时修改
+         */
+        private int handovers;
+    }
+
+    /**
+     * 交给本地下一个线程的租约
+     */
+    private static final class Handover {
+
+        private final String uuid;
+
+        private final boolean watched;
+
+        private Handover(String uuid, boolean watched) {
+            this.uuid = uuid;
+            this.watched = watched;
+        }
+    }
 }
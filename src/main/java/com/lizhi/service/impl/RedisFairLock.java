@@ -0,0 +1,240 @@
+package com.lizhi.service.impl;
+
+import com.lizhi.service.AbstractDistributedLock;
+import com.lizhi.utils.RetryCallBack;
+import com.lizhi.utils.RetryTemplate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * 公平锁，按到达顺序加锁
+ * <p>
+ * {key}:fair 为锁本身（value为本次加锁的token），{key}:queue 为等待队列（list），{key}:timeouts 记录每个等待者的心跳截止时间（zset）。
+ * 只有队首（或队列为空时）才能拿到锁；拿不到的进入队尾，每次重试刷新自己的截止时间。
+ * 释放锁时只通知队首，每个等待者订阅自己的频道（LockReleaseNotifier.CHANNEL_PREFIX + token），不会惊群。
+ * <p>
+ * 等待者挂掉后不再刷新截止时间，排到队首后超过截止时间会被后面的等待者清理掉，最多阻塞队列 sleepMillis * QUEUE_TIMEOUT_FACTOR。
+ * 截止时间使用redis的TIME，不受客户端时钟影响（需要redis 3.2以上，脚本内先调用replicate_commands）。
+ */
+@Component
+public class RedisFairLock extends AbstractDistributedLock {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RedisFairLock.class);
+
+    /**
+     * 等待者多少个重试间隔没有刷新就视为已经放弃
+     */
+    private static final int QUEUE_TIMEOUT_FACTOR = 3;
+
+    private static final String TOKEN_PREFIX = "fair-waiter:";
+
+    /**
+     * KEYS[1] 锁，KEYS[2] 队列，KEYS[3] 截止时间；ARGV[1] token，ARGV[2] 租期，ARGV[3] 等待超时
+     * 成功返回1，进入队列返回0
+     */
+    private static final String LOCK_LUA;
+
+    static {
+        StringBuilder sb = new StringBuilder();
+        sb.append("redis.replicate_commands() ");
+        sb.append("local t = redis.call(\"time\") ");
+        sb.append("local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000) ");
+        // 清理队首已经放弃的等待者
+        sb.append("while true do ");
+        sb.append("    local first = redis.call(\"lindex\",KEYS[2],0) ");
+        sb.append("    if not first then break end ");
+        sb.append("    local deadline = tonumber(redis.call(\"zscore\",KEYS[3],first)) ");
+        sb.append("    if deadline ~= nil and deadline > now then break end ");
+        sb.append("    redis.call(\"lpop\",KEYS[2]) ");
+        sb.append("    redis.call(\"zrem\",KEYS[3],first) ");
+        sb.append("end ");
+        sb.append("local holder = redis.call(\"get\",KEYS[1]) ");
+        sb.append("if holder == ARGV[1] then ");
+        sb.append("    return 1 ");
+        sb.append("end ");
+        sb.append("if not holder then ");
+        sb.append("    local first = redis.call(\"lindex\",KEYS[2],0) ");
+        sb.append("    if not first or first == ARGV[1] then ");
+        sb.append("        if first then ");
+        sb.append("            redis.call(\"lpop\",KEYS[2]) ");
+        sb.append("            redis.call(\"zrem\",KEYS[3],ARGV[1]) ");
+        sb.append("        end ");
+        sb.append("        redis.call(\"set\",KEYS[1],ARGV[1],\"PX\",ARGV[2]) ");
+        sb.append("        return 1 ");
+        sb.append("    end ");
+        sb.append("end ");
+        sb.append("if not redis.call(\"zscore\",KEYS[3],ARGV[1]) then ");
+        sb.append("    redis.call(\"rpush\",KEYS[2],ARGV[1]) ");
+        sb.append("end ");
+        sb.append("redis.call(\"zadd\",KEYS[3],now + tonumber(ARGV[3]),ARGV[1]) ");
+        // 所有等待者都挂掉时队列自动过期
+        sb.append("local ttl = tonumber(ARGV[3]) * 2 ");
+        sb.append("if redis.call(\"pttl\",KEYS[2]) < ttl then ");
+        sb.append("    redis.call(\"pexpire\",KEYS[2],ttl) ");
+        sb.append("    redis.call(\"pexpire\",KEYS[3],ttl) ");
+        sb.append("end ");
+        sb.append("return 0 ");
+        LOCK_LUA = sb.toString();
+    }
+
+    /**
+     * KEYS[1] 锁，KEYS[2] 队列；ARGV[1] token，ARGV[2] 通知频道前缀
+     * 释放成功后通知队首
+     */
+    private static final String UNLOCK_LUA;
+
+    static {
+        StringBuilder sb = new StringBuilder();
+        sb.append("if redis.call(\"get\",KEYS[1]) ~= ARGV[1] then ");
+        sb.append("    return 0 ");
+        sb.append("end ");
+        sb.append("redis.call(\"del\",KEYS[1]) ");
+        sb.append("local first = redis.call(\"lindex\",KEYS[2],0) ");
+        sb.append("if first then ");
+        sb.append("    redis.call(\"publish\",ARGV[2] .. first,KEYS[1]) ");
+        sb.append("end ");
+        sb.append("return 1 ");
+        UNLOCK_LUA = sb.toString();
+    }
+
+    /**
+     * KEYS[1] 锁，KEYS[2] 队列，KEYS[3] 截止时间；ARGV[1] token，ARGV[2] 通知频道前缀
+     * 放弃等待时出队，如果自己是队首且锁空闲，通知下一个
+     */
+    private static final String CANCEL_LUA;
+
+    static {
+        StringBuilder sb = new StringBuilder();
+        sb.append("local wasFirst = redis.call(\"lindex\",KEYS[2],0) == ARGV[1] ");
+        sb.append("redis.call(\"lrem\",KEYS[2],0,ARGV[1]) ");
+        sb.append("redis.call(\"zrem\",KEYS[3],ARGV[1]) ");
+        sb.append("if wasFirst and redis.call(\"exists\",KEYS[1]) == 0 then ");
+        sb.append("    local first = redis.call(\"lindex\",KEYS[2],0) ");
+        sb.append("    if first then ");
+        sb.append("        redis.call(\"publish\",ARGV[2] .. first,KEYS[1]) ");
+        sb.append("    end ");
+        sb.append("end ");
+        sb.append("return 1 ");
+        CANCEL_LUA = sb.toString();
+    }
+
+    private static final ThreadLocal<Map<String, String>> threadLocal = ThreadLocal.withInitial(HashMap::new);
+
+    @Autowired
+    private RedisService redisService;
+
+    @Autowired
+    private LockReleaseNotifier notifier;
+
+    @Autowired
+    private LockWatchdog watchdog;
+
+    @Override
+    public boolean lock(String key, long expire, int retryTimes, long sleepMillis) {
+        return lock(key, expire, retryTimes, sleepMillis, false);
+    }
+
+    @Override
+    public boolean lock(String key, long expire, int retryTimes, long sleepMillis, boolean autoRenew) {
+        return acquire(key, expire, retryTimes, sleepMillis, RetryTemplate.totalWaitMillis(retryTimes, sleepMillis), autoRenew);
+    }
+
+    @Override
+    public boolean tryLock(String key, long expire, long waitMillis, long sleepMillis, boolean autoRenew) {
+        return acquire(key, expire, Integer.MAX_VALUE, sleepMillis, waitMillis, autoRenew);
+    }
+
+    /**
+     * @param timeoutMillis 总等待时长ms，负数不限时
+     */
+    private boolean acquire(String key, long expire, int retryTimes, long sleepMillis, long timeoutMillis, boolean autoRenew) {
+        final String token = TOKEN_PREFIX + UUID.randomUUID().toString();
+        final List<String> keys = keys(key);
+        final List<String> args = Arrays.asList(token, String.valueOf(expire),
+                String.valueOf(Math.max(sleepMillis, 1) * QUEUE_TIMEOUT_FACTOR));
+        Boolean execute = null;
+        // 只有轮到自己时才会收到通知
+        try (LockReleaseNotifier.Waiter waiter = notifier.newWaiter(token)) {
+            execute = new RetryTemplate(retryTimes, sleepMillis) {
+                @Override
+                public void waitForRetry(long millis) throws InterruptedException {
+                    waiter.await(millis);
+                }
+            }.forLock(sleepMillis, timeoutMillis).execute(new RetryCallBack<Boolean>() {
+                @Override
+                public Boolean doWithRetry() {
+                    waiter.mark();
+                    Long result = (Long) redisService.eval(LOCK_LUA, keys, args);
+                    return result != null && result == 1;
+                }
+
+                @Override
+                public boolean isComplete(Boolean result) {
+                    return result;
+                }
+            });
+        } finally {
+            if (execute == null || !execute) {
+                cancel(key, token);
+            }
+        }
+        if (execute == null || !execute) {
+            return false;
+        }
+        threadLocal.get().put(key, token);
+        if (autoRenew) {
+            watchdog.watch(lockKey(key), token, expire);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isLock(String key) {
+        String token = threadLocal.get().get(key);
+        return token != null && token.equals(redisService.get(lockKey(key)));
+    }
+
+    @Override
+    public boolean releaseLock(String key) {
+        try {
+            String token = threadLocal.get().remove(key);
+            if (token == null) {
+                // 与RedisDistributedLock一致：没有持有记录视为已释放
+                LOGGER.error("Failed to releaseLock ,because token is null , key:[{}]", key);
+                return true;
+            }
+            watchdog.unwatch(lockKey(key), token);
+            Long result = (Long) redisService.eval(UNLOCK_LUA, keys(key).subList(0, 2),
+                    Arrays.asList(token, LockReleaseNotifier.CHANNEL_PREFIX));
+            return result != null && result > 0;
+        } catch (Exception e) {
+            LOGGER.error("Failed to releaseLock", e);
+            return false;
+        }
+    }
+
+    private void cancel(String key, String token) {
+        try {
+            redisService.eval(CANCEL_LUA, keys(key), Arrays.asList(token, LockReleaseNotifier.CHANNEL_PREFIX));
+        } catch (Exception e) {
+            // 没能出队也会在截止时间后被清理
+            LOGGER.error("Failed to leave fair lock queue, key:[{}]", key, e);
+        }
+    }
+
+    private static String lockKey(String key) {
+        return "{" + key + "}:fair";
+    }
+
+    private static List<String> keys(String key) {
+        return Arrays.asList(lockKey(key), "{" + key + "}:queue", "{" + key + "}:timeouts");
+    }
+}
@@ -0,0 +1,313 @@
+package com.lizhi.service.impl;
+
+import com.lizhi.service.IMultiDistributedLock;
+import com.lizhi.utils.RetryCallBack;
+import com.lizhi.utils.RetryTemplate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import redis.clients.util.JedisClusterCRC16;
+
+import javax.annotation.PreDestroy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * 多key锁，用于转账这类要同时锁住多个资源的场景
+ * <p>
+ * key排序去重后在一个lua脚本里检查并加锁：任何一个key已被占用就一个都不加，不存在先拿到一部分再等另一部分的死锁，
+ * 一次往返拿到全部锁；释放同样一次调用。每个key的格式与RedisDistributedLock相同（SET value PX），两者互斥同一个key。
+ * <p>
+ * 集群模式下脚本的key必须在同一个slot，所以按slot分组，各组并行执行；有一组失败就释放已经拿到的组，整体重试。
+ */
+@Component
+public class RedisMultiLock implements IMultiDistributedLock {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RedisMultiLock.class);
+
+    /**
+     * KEYS 已排序的key；ARGV[1] token，ARGV[2] 失效时间ms
+     */
+    private static final String LOCK_LUA;
+
+    static {
+        StringBuilder sb = new StringBuilder();
+        sb.append("for i = 1, #KEYS do ");
+        sb.append("    if redis.call(\"exists\",KEYS[i]) == 1 then ");
+        sb.append("        return 0 ");
+        sb.append("    end ");
+        sb.append("end ");
+        sb.append("for i = 1, #KEYS do ");
+        sb.append("    redis.call(\"set\",KEYS[i],ARGV[1],\"PX\",ARGV[2]) ");
+        sb.append("end ");
+        sb.append("return 1 ");
+        LOCK_LUA = sb.toString();
+    }
+
+    /**
+     * KEYS 锁；ARGV[1] token，ARGV[2] 通知频道前缀
+     * 只删除value为token的key，每个释放的key发布通知，返回释放的个数
+     */
+    private static final String UNLOCK_LUA;
+
+    static {
+        StringBuilder sb = new StringBuilder();
+        sb.append("local released = 0 ");
+        sb.append("for i = 1, #KEYS do ");
+        sb.append("    if redis.call(\"get\",KEYS[i]) == ARGV[1] then ");
+        sb.append("        redis.call(\"del\",KEYS[i]) ");
+        sb.append("        redis.call(\"publish\",ARGV[2] .. KEYS[i],KEYS[i]) ");
+        sb.append("        released = released + 1 ");
+        sb.append("    end ");
+        sb.append("end ");
+        sb.append("return released ");
+        UNLOCK_LUA = sb.toString();
+    }
+
+    /**
+     * 并行执行slot分组的线程数，第一组在调用线程执行
+     */
+    private static final int GROUP_THREADS = 7;
+
+    private static final ThreadLocal<Map<String, String>> threadLocal = ThreadLocal.withInitial(HashMap::new);
+
+    @Autowired
+    private RedisService redisService;
+
+    @Autowired
+    private LockReleaseNotifier notifier;
+
+    @Autowired
+    private LockWatchdog watchdog;
+
+    private final ThreadPoolExecutor executor;
+
+    public RedisMultiLock() {
+        executor = new ThreadPoolExecutor(GROUP_THREADS, GROUP_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "redis-multi-lock");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public boolean lock(Collection<String> keys, long expire, int retryTimes, long sleepMillis) {
+        return lock(keys, expire, retryTimes, sleepMillis, false);
+    }
+
+    @Override
+    public boolean lock(Collection<String> keys, long expire, int retryTimes, long sleepMillis, boolean autoRenew) {
+        return acquire(keys, expire, retryTimes, sleepMillis, RetryTemplate.totalWaitMillis(retryTimes, sleepMillis), autoRenew);
+    }
+
+    @Override
+    public boolean tryLock(Collection<String> keys, long expire, long waitMillis, long sleepMillis, boolean autoRenew) {
+        return acquire(keys, expire, Integer.MAX_VALUE, sleepMillis, waitMillis, autoRenew);
+    }
+
+    /**
+     * @param timeoutMillis 总等待时长ms，负数不限时
+     */
+    private boolean acquire(Collection<String> keys, long expire, int retryTimes, long sleepMillis, long timeoutMillis, boolean autoRenew) {
+        final List<List<String>> groups = group(keys);
+        final String token = UUID.randomUUID().toString();
+        final List<String> args = Arrays.asList(token, String.valueOf(expire));
+        final Semaphore released = new Semaphore(0);
+        final List<LockReleaseNotifier.Registration> registrations = new ArrayList<>();
+        try {
+            Boolean execute = new RetryTemplate(retryTimes, sleepMillis) {
+                @Override
+                public void waitForRetry(long millis) throws InterruptedException {
+                    // 任何一个key释放都提前重试，登记之后的释放不会丢失
+                    if (registrations.isEmpty()) {
+                        for (List<String> group : groups) {
+                            for (String key : group) {
+                                registrations.add(notifier.onRelease(key, released::release));
+                            }
+                        }
+                    }
+                    released.tryAcquire(millis, TimeUnit.MILLISECONDS);
+                    released.drainPermits();
+                }
+            }.forLock(sleepMillis, timeoutMillis).execute(new RetryCallBack<Boolean>() {
+                @Override
+                public Boolean doWithRetry() {
+                    return tryLock(groups, token, args);
+                }
+
+                @Override
+                public boolean isComplete(Boolean result) {
+                    return result;
+                }
+            });
+            if (execute == null || !execute) {
+                return false;
+            }
+        } finally {
+            for (LockReleaseNotifier.Registration registration : registrations) {
+                registration.close();
+            }
+        }
+        Map<String, String> held = threadLocal.get();
+        for (List<String> group : groups) {
+            for (String key : group) {
+                held.put(key, token);
+                if (autoRenew) {
+                    watchdog.watch(key, token, expire);
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean releaseLock(Collection<String> keys) {
+        Map<String, String> held = threadLocal.get();
+        // keys可能来自多次lock，每次的token不同，按token分别释放
+        Map<String, List<String>> byToken = new HashMap<>();
+        boolean all = true;
+        for (String key : new TreeSet<>(keys)) {
+            String token = held.remove(key);
+            if (token == null) {
+                all = false;
+                continue;
+            }
+            watchdog.unwatch(key, token);
+            byToken.computeIfAbsent(token, t -> new ArrayList<>()).add(key);
+        }
+        if (byToken.isEmpty()) {
+            // 与RedisDistributedLock一致：没有持有记录视为已释放
+            LOGGER.error("Failed to releaseLock ,because token is null , keys:[{}]", keys);
+            return true;
+        }
+        for (Map.Entry<String, List<String>> entry : byToken.entrySet()) {
+            try {
+                List<List<String>> groups = group(entry.getValue());
+                if (unlock(groups, entry.getKey()) != countKeys(groups)) {
+                    all = false;
+                }
+            } catch (Exception e) {
+                LOGGER.error("Failed to releaseLock", e);
+                all = false;
+            }
+        }
+        return all;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 一次加锁尝试，全部成功或者全部不加
+     */
+    private boolean tryLock(List<List<String>> groups, String token, List<String> args) {
+        if (groups.size() == 1) {
+            return Long.valueOf(1).equals(redisService.eval(LOCK_LUA, groups.get(0), args));
+        }
+        List<CompletableFuture<Boolean>> futures = forEachGroup(groups, group -> Long.valueOf(1).equals(redisService.eval(LOCK_LUA, group, args)));
+        boolean all = true;
+        List<List<String>> acquired = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                if (futures.get(i).join()) {
+                    acquired.add(groups.get(i));
+                } else {
+                    all = false;
+                }
+            } catch (Exception e) {
+                // 不知道是否已经加上，按加上处理，释放时只删自己的value
+                LOGGER.error("Failed to lock slot group {}", groups.get(i), e);
+                acquired.add(groups.get(i));
+                all = false;
+            }
+        }
+        if (!all && !acquired.isEmpty()) {
+            unlock(acquired, token);
+        }
+        return all;
+    }
+
+    /**
+     * @return 释放的key个数
+     */
+    private long unlock(List<List<String>> groups, String token) {
+        List<String> args = Arrays.asList(token, LockReleaseNotifier.CHANNEL_PREFIX);
+        if (groups.size() == 1) {
+            return (Long) redisService.eval(UNLOCK_LUA, groups.get(0), args);
+        }
+        List<CompletableFuture<Long>> futures = forEachGroup(groups, group -> (Long) redisService.eval(UNLOCK_LUA, group, args));
+        long released = 0;
+        for (CompletableFuture<Long> future : futures) {
+            try {
+                released += future.join();
+            } catch (Exception e) {
+                LOGGER.error("Failed to unlock slot group", e);
+            }
+        }
+        return released;
+    }
+
+    /**
+     * 第一组在调用线程执行，其余组提交到线程池；结果与groups一一对应
+     */
+    private <T> List<CompletableFuture<T>> forEachGroup(List<List<String>> groups, Function<List<String>, T> action) {
+        List<CompletableFuture<T>> futures = new ArrayList<>(groups.size());
+        futures.add(new CompletableFuture<>());
+        for (int i = 1; i < groups.size(); i++) {
+            List<String> group = groups.get(i);
+            futures.add(CompletableFuture.supplyAsync(() -> action.apply(group), executor));
+        }
+        try {
+            futures.get(0).complete(action.apply(groups.get(0)));
+        } catch (Exception e) {
+            futures.get(0).completeExceptionally(e);
+        }
+        return futures;
+    }
+
+    /**
+     * 排序去重；集群模式按slot分组，单机模式只有一组
+     */
+    private List<List<String>> group(Collection<String> keys) {
+        TreeSet<String> sorted = new TreeSet<>(keys);
+        if (sorted.isEmpty()) {
+            throw new IllegalArgumentException("keys must not be empty");
+        }
+        if (!redisService.isCluster()) {
+            return Collections.singletonList(new ArrayList<>(sorted));
+        }
+        Map<Integer, List<String>> bySlot = new TreeMap<>();
+        for (String key : sorted) {
+            bySlot.computeIfAbsent(JedisClusterCRC16.getSlot(key), slot -> new ArrayList<>()).add(key);
+        }
+        return new ArrayList<>(bySlot.values());
+    }
+
+    private static int countKeys(List<List<String>> groups) {
+        int count = 0;
+        for (List<String> group : groups) {
+            count += group.size();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,362 @@
+package com.lizhi.service.impl;
+
+import com.lizhi.service.AbstractDistributedLock;
+import com.lizhi.service.IDistributedLock;
+import com.lizhi.utils.RetryCallBack;
+import com.lizhi.utils.RetryTemplate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 读写锁
+ * <p>
+ * {key}:rw 是一个hash：mode字段为read/write，其余字段为持有者（实例id:线程id）-> 重入次数。
+ * 读锁之间共享，写锁独占，读写都可重入，最后一个持有者释放时删除key并发布释放通知。
+ * <p>
+ * 写优先：拿不到写锁的写者加入集合 {key}:write-wait，并设置自己的标记 {key}:write-wait:持有者（带过期时间，每次重试刷新），
+ * 集合中还有标记未过期的写者时，新的读者不能再加读锁，已经持有读锁的线程重入不受影响，避免持续不断的读请求把写请求饿死。
+ * 写者拿到锁或者放弃时只移除自己，其他等待的写者仍然保持优先；挂掉的写者标记过期后由读者顺带清理。
+ * 拿到写锁的线程再加读锁、持有读锁的线程升级为写锁都不支持。
+ * <p>
+ * 每个读者有自己的租约 {key}:rw:lease:持有者（string，value为持有者），{key}:rw的过期时间只延长不缩短。
+ * 加写锁前先清理租约已经过期的读者，挂掉的读者不会阻塞写者到整个hash过期；autoRenew时看门狗分别续期读者自己的租约和hash。
+ * 脚本按前缀拼出每个持有者的key，与KEYS[1]使用同一个hash tag，集群模式下在同一个slot。
+ */
+@Component
+public class RedisReadWriteLock {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RedisReadWriteLock.class);
+
+    private static final String INSTANCE_ID = UUID.randomUUID().toString();
+
+    private static final String READ = "read";
+
+    private static final String WRITE = "write";
+
+    /**
+     * 写等待标记最短保留时间ms
+     */
+    private static final long MIN_WRITE_WAIT_MILLIS = 1000;
+
+    /**
+     * waiters 写等待集合，prefix 写等待标记前缀
+     * 是否还有标记未过期的写者在等待，顺带移除标记已过期的写者
+     */
+    private static final String WRITER_WAITING_FUNCTION;
+
+    static {
+        StringBuilder sb = new StringBuilder();
+        sb.append("local function writerWaiting(waiters, prefix) ");
+        sb.append("    local waiting = false ");
+        sb.append("    for _, w in ipairs(redis.call(\"smembers\",waiters)) do ");
+        sb.append("        if redis.call(\"exists\",prefix .. w) == 1 then ");
+        sb.append("            waiting = true ");
+        sb.append("        else ");
+        sb.append("            redis.call(\"srem\",waiters,w) ");
+        sb.append("        end ");
+        sb.append("    end ");
+        sb.append("    return waiting ");
+        sb.append("end ");
+        WRITER_WAITING_FUNCTION = sb.toString();
+    }
+
+    /**
+     * KEYS[1] rw hash，KEYS[2] 写等待集合；ARGV[1] 租期，ARGV[2] 持有者，ARGV[3] 读者租约前缀，ARGV[4] 写等待标记前缀
+     * 成功返回重入次数，失败返回0
+     */
+    private static final String READ_LOCK_LUA;
+
+    static {
+        StringBuilder sb = new StringBuilder(WRITER_WAITING_FUNCTION);
+        sb.append("local mode = redis.call(\"hget\",KEYS[1],\"mode\") ");
+        sb.append("if mode == \"write\" then ");
+        sb.append("    return 0 ");
+        sb.append("end ");
+        sb.append("local reentry = mode == \"read\" and redis.call(\"hexists\",KEYS[1],ARGV[2]) == 1 ");
+        sb.append("if not reentry and writerWaiting(KEYS[2],ARGV[4]) then ");
+        sb.append("    return 0 ");
+        sb.append("end ");
+        sb.append("if mode == false then ");
+        sb.append("    redis.call(\"hset\",KEYS[1],\"mode\",\"read\") ");
+        sb.append("end ");
+        sb.append("local count = redis.call(\"hincrby\",KEYS[1],ARGV[2],1) ");
+        // 自己的租约和整个hash都只延长不缩短
+        sb.append("local lease = ARGV[3] .. ARGV[2] ");
+        sb.append("if redis.call(\"pttl\",lease) < tonumber(ARGV[1]) then ");
+        sb.append("    redis.call(\"set\",lease,ARGV[2],\"PX\",ARGV[1]) ");
+        sb.append("end ");
+        sb.append("if redis.call(\"pttl\",KEYS[1]) < tonumber(ARGV[1]) then ");
+        sb.append("    redis.call(\"pexpire\",KEYS[1],ARGV[1]) ");
+        sb.append("end ");
+        sb.append("return count ");
+        READ_LOCK_LUA = sb.toString();
+    }
+
+    /**
+     * KEYS[1] rw hash，KEYS[2] 写等待集合；ARGV[1] 租期，ARGV[2] 持有者，ARGV[3] 写等待标记过期时间，
+     * ARGV[4] 读者租约前缀，ARGV[5] 写等待标记前缀
+     * 成功返回重入次数，失败登记写等待并返回0
+     */
+    private static final String WRITE_LOCK_LUA;
+
+    static {
+        StringBuilder sb = new StringBuilder();
+        // 清理租约已经过期的读者
+        sb.append("if redis.call(\"hget\",KEYS[1],\"mode\") == \"read\" then ");
+        sb.append("    for _, f in ipairs(redis.call(\"hkeys\",KEYS[1])) do ");
+        sb.append("        if f ~= \"mode\" and redis.call(\"exists\",ARGV[4] .. f) == 0 then ");
+        sb.append("            redis.call(\"hdel\",KEYS[1],f) ");
+        sb.append("        end ");
+        sb.append("    end ");
+        sb.append("    if redis.call(\"hlen\",KEYS[1]) <= 1 then ");
+        sb.append("        redis.call(\"del\",KEYS[1]) ");
+        sb.append("    end ");
+        sb.append("end ");
+        sb.append("local mode = redis.call(\"hget\",KEYS[1],\"mode\") ");
+        sb.append("if mode == false then ");
+        sb.append("    redis.call(\"hset\",KEYS[1],\"mode\",\"write\") ");
+        sb.append("    redis.call(\"hset\",KEYS[1],ARGV[2],1) ");
+        sb.append("    redis.call(\"pexpire\",KEYS[1],ARGV[1]) ");
+        sb.append("    redis.call(\"srem\",KEYS[2],ARGV[2]) ");
+        sb.append("    redis.call(\"del\",ARGV[5] .. ARGV[2]) ");
+        sb.append("    return 1 ");
+        sb.append("end ");
+        sb.append("if mode == \"write\" and redis.call(\"hexists\",KEYS[1],ARGV[2]) == 1 then ");
+        sb.append("    local count = redis.call(\"hincrby\",KEYS[1],ARGV[2],1) ");
+        sb.append("    if redis.call(\"pttl\",KEYS[1]) < tonumber(ARGV[1]) then ");
+        sb.append("        redis.call(\"pexpire\",KEYS[1],ARGV[1]) ");
+        sb.append("    end ");
+        sb.append("    return count ");
+        sb.append("end ");
+        sb.append("redis.call(\"sadd\",KEYS[2],ARGV[2]) ");
+        sb.append("redis.call(\"set\",ARGV[5] .. ARGV[2],1,\"PX\",ARGV[3]) ");
+        sb.append("if redis.call(\"pttl\",KEYS[2]) < tonumber(ARGV[3]) then ");
+        sb.append("    redis.call(\"pexpire\",KEYS[2],ARGV[3]) ");
+        sb.append("end ");
+        sb.append("return 0 ");
+        WRITE_LOCK_LUA = sb.toString();
+    }
+
+    /**
+     * KEYS[1] 写等待集合；ARGV[1] 持有者，ARGV[2] 写等待标记前缀
+     * 写者放弃等待时只移除自己
+     */
+    private static final String CANCEL_WRITE_WAIT_LUA;
+
+    static {
+        StringBuilder sb = new StringBuilder();
+        sb.append("redis.call(\"srem\",KEYS[1],ARGV[1]) ");
+        sb.append("redis.call(\"del\",ARGV[2] .. ARGV[1]) ");
+        sb.append("return 1 ");
+        CANCEL_WRITE_WAIT_LUA = sb.toString();
+    }
+
+    /**
+     * KEYS[1] rw hash；ARGV[1] 持有者，ARGV[2] 通知频道，ARGV[3] 模式，ARGV[4] 读者租约前缀
+     * 不是该模式的持有者返回-1，自己还有重入返回0，自己已释放但还有其他读者返回1，锁彻底释放返回2
+     */
+    private static final String UNLOCK_LUA;
+
+    static {
+        StringBuilder sb = new StringBuilder();
+        sb.append("if redis.call(\"hget\",KEYS[1],\"mode\") ~= ARGV[3] or redis.call(\"hexists\",KEYS[1],ARGV[1]) == 0 then ");
+        sb.append("    return -1 ");
+        sb.append("end ");
+        sb.append("if redis.call(\"hincrby\",KEYS[1],ARGV[1],-1) > 0 then ");
+        sb.append("    return 0 ");
+        sb.append("end ");
+        sb.append("redis.call(\"hdel\",KEYS[1],ARGV[1]) ");
+        sb.append("redis.call(\"del\",ARGV[4] .. ARGV[1]) ");
+        sb.append("if redis.call(\"hlen\",KEYS[1]) > 1 then ");
+        sb.append("    return 1 ");
+        sb.append("end ");
+        sb.append("redis.call(\"del\",KEYS[1]) ");
+        sb.append("redis.call(\"publish\",ARGV[2],KEYS[1]) ");
+        sb.append("return 2 ");
+        UNLOCK_LUA = sb.toString();
+    }
+
+    /**
+     * KEYS[1] rw hash；ARGV[1] 持有者，ARGV[2] 模式
+     */
+    private static final String IS_LOCK_LUA;
+
+    static {
+        StringBuilder sb = new StringBuilder();
+        sb.append("if redis.call(\"hget\",KEYS[1],\"mode\") == ARGV[2] then ");
+        sb.append("    return redis.call(\"hexists\",KEYS[1],ARGV[1]) ");
+        sb.append("end ");
+        sb.append("return 0 ");
+        IS_LOCK_LUA = sb.toString();
+    }
+
+    @Autowired
+    private RedisService redisService;
+
+    @Autowired
+    private LockReleaseNotifier notifier;
+
+    @Autowired
+    private LockWatchdog watchdog;
+
+    private final IDistributedLock readLock = new ModeLock(READ, READ_LOCK_LUA);
+
+    private final IDistributedLock writeLock = new ModeLock(WRITE, WRITE_LOCK_LUA);
+
+    /**
+     * @return 读锁，多个读者可以同时持有
+     */
+    public IDistributedLock readLock() {
+        return readLock;
+    }
+
+    /**
+     * @return 写锁，与所有读锁、其他写锁互斥
+     */
+    public IDistributedLock writeLock() {
+        return writeLock;
+    }
+
+    private static String rwKey(String key) {
+        return "{" + key + "}:rw";
+    }
+
+    private static String writeWaitKey(String key) {
+        return "{" + key + "}:write-wait";
+    }
+
+    private static String writeWaitPrefix(String key) {
+        return writeWaitKey(key) + ":";
+    }
+
+    private static String leasePrefix(String key) {
+        return rwKey(key) + ":lease:";
+    }
+
+    private static String owner() {
+        return INSTANCE_ID + ":" + Thread.currentThread().getId();
+    }
+
+    /**
+     * 读锁、写锁只有脚本和模式不同
+     */
+    private final class ModeLock extends AbstractDistributedLock {
+
+        private final String mode;
+
+        private final String lockScript;
+
+        private ModeLock(String mode, String lockScript) {
+            this.mode = mode;
+            this.lockScript = lockScript;
+        }
+
+        @Override
+        public boolean lock(String key, long expire, int retryTimes, long sleepMillis) {
+            return lock(key, expire, retryTimes, sleepMillis, false);
+        }
+
+        @Override
+        public boolean lock(String key, long expire, int retryTimes, long sleepMillis, boolean autoRenew) {
+            return acquire(key, expire, retryTimes, sleepMillis, RetryTemplate.totalWaitMillis(retryTimes, sleepMillis), autoRenew);
+        }
+
+        @Override
+        public boolean tryLock(String key, long expire, long waitMillis, long sleepMillis, boolean autoRenew) {
+            return acquire(key, expire, Integer.MAX_VALUE, sleepMillis, waitMillis, autoRenew);
+        }
+
+        /**
+         * @param timeoutMillis 总等待时长ms，负数不限时
+         */
+        private boolean acquire(String key, long expire, int retryTimes, long sleepMillis, long timeoutMillis, boolean autoRenew) {
+            final String owner = owner();
+            final List<String> keys = Arrays.asList(rwKey(key), writeWaitKey(key));
+            final List<String> args = READ.equals(mode)
+                    ? Arrays.asList(String.valueOf(expire), owner, leasePrefix(key), writeWaitPrefix(key))
+                    : Arrays.asList(String.valueOf(expire), owner, String.valueOf(Math.max(sleepMillis * 2, MIN_WRITE_WAIT_MILLIS)),
+                    leasePrefix(key), writeWaitPrefix(key));
+            try (LockReleaseNotifier.Waiter waiter = notifier.newWaiter(key)) {
+                Long count = new RetryTemplate(retryTimes, sleepMillis) {
+                    @Override
+                    public void waitForRetry(long millis) throws InterruptedException {
+                        waiter.await(millis);
+                    }
+                }.forLock(sleepMillis, timeoutMillis).execute(new RetryCallBack<Long>() {
+                    @Override
+                    public Long doWithRetry() {
+                        waiter.mark();
+                        return (Long) redisService.eval(lockScript, keys, args);
+                    }
+
+                    @Override
+                    public boolean isComplete(Long result) {
+                        return result != null && result > 0;
+                    }
+                });
+                if (count == null) {
+                    if (WRITE.equals(mode)) {
+                        cancelWriteWait(key, owner);
+                    }
+                    return false;
+                }
+                if (autoRenew && count == 1) {
+                    watchdog.watch(rwKey(key), owner, expire);
+                    if (READ.equals(mode)) {
+                        watchdog.watch(leasePrefix(key) + owner, owner, expire);
+                    }
+                }
+                return true;
+            }
+        }
+
+        @Override
+        public boolean isLock(String key) {
+            try {
+                Long result = (Long) redisService.eval(IS_LOCK_LUA, Collections.singletonList(rwKey(key)), Arrays.asList(owner(), mode));
+                return result != null && result == 1;
+            } catch (Exception e) {
+                LOGGER.error("Failed to check {} lock, key:[{}]", mode, key, e);
+                return false;
+            }
+        }
+
+        @Override
+        public boolean releaseLock(String key) {
+            try {
+                String owner = owner();
+                Long result = (Long) redisService.eval(UNLOCK_LUA, Collections.singletonList(rwKey(key)),
+                        Arrays.asList(owner, LockReleaseNotifier.channel(key), mode, leasePrefix(key)));
+                if (result == null || result < 0) {
+                    LOGGER.error("Failed to releaseLock, {} lock is not held by current thread, key:[{}]", mode, key);
+                    return false;
+                }
+                if (result > 0) {
+                    watchdog.unwatch(rwKey(key), owner);
+                    watchdog.unwatch(leasePrefix(key) + owner, owner);
+                }
+                return true;
+            } catch (Exception e) {
+                LOGGER.error("Failed to releaseLock", e);
+                return false;
+            }
+        }
+
+        private void cancelWriteWait(String key, String owner) {
+            try {
+                redisService.eval(CANCEL_WRITE_WAIT_LUA, Collections.singletonList(writeWaitKey(key)),
+                        Arrays.asList(owner, writeWaitPrefix(key)));
+            } catch (Exception e) {
+                // 标记过期后读者会顺带清理
+                LOGGER.error("Failed to leave write wait, key:[{}]", key, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package com.lizhi.service.impl;
+
+import com.lizhi.service.AbstractDistributedLock;
+import com.lizhi.utils.RetryCallBack;
+import com.lizhi.utils.RetryTemplate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisCommands;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * 多实例多数派锁（Redlock）
+ * <p>
+ * RedisDistributedLock提到主从异步复制在故障切换后可能把同一把锁发给两个人。
+ * 这里在N个互相独立的redis实例（不是同一个集群的主从）上同时SET NX PX，超过半数成功且
+ * 有效期 = 租期 - 耗时 - 时钟漂移 仍大于0 才算拿到锁，否则立即在所有实例上释放。
+ * 单个实例挂掉或者切换不影响安全性，也不需要加锁后再isLock双重检查。
+ * <p>
+ * 各实例并行请求，加锁耗时接近单个实例；释放同样并行发往所有实例。
+ * 每个实例有自己的小线程池和有界队列，一个实例卡住只会占满它自己的线程，不影响其他实例；
+ * 排队超过instanceTimeoutMillis还没开始的加锁请求直接放弃，超时后才成功的SET在本次加锁失败或已释放时补一次释放。
+ * isLock只在本地判断有效期，不访问redis。不支持autoRenew，传true时打WARN日志后按不续期加锁。
+ * <p>
+ * 需要自行配置：new RedisRedLock(Arrays.asList(factory1, factory2, factory3))，只支持Jedis连接。
+ * 连接工厂的超时时间应远小于租期，卡住的实例才能尽快释放线程。
+ */
+public class RedisRedLock extends AbstractDistributedLock implements DisposableBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RedisRedLock.class);
+
+    /**
+     * 时钟漂移：租期的1%再加2ms
+     */
+    private static final double CLOCK_DRIFT_FACTOR = 0.01;
+
+    private static final long DEFAULT_INSTANCE_TIMEOUT_MILLIS = 50;
+
+    /**
+     * 每个实例的线程数和排队上限
+     */
+    private static final int INSTANCE_THREADS = 2;
+
+    private static final int INSTANCE_QUEUE_SIZE = 64;
+
+    private final List<RedisConnectionFactory> connectionFactories;
+
+    private final int quorum;
+
+    /**
+     * 与connectionFactories一一对应
+     */
+    private final List<ThreadPoolExecutor> executors;
+
+    /**
+     * 单个实例的等待上限ms，应远小于租期，挂掉的实例不会拖慢加锁
+     */
+    private volatile long instanceTimeoutMillis = DEFAULT_INSTANCE_TIMEOUT_MILLIS;
+
+    /**
+     * key -> 本线程持有的锁
+     */
+    private final ThreadLocal<Map<String, Held>> threadLocal = ThreadLocal.withInitial(HashMap::new);
+
+    public RedisRedLock(List<RedisConnectionFactory> connectionFactories) {
+        if (connectionFactories == null || connectionFactories.isEmpty()) {
+            throw new IllegalArgumentException("connectionFactories must not be empty");
+        }
+        this.connectionFactories = new ArrayList<>(connectionFactories);
+        this.quorum = connectionFactories.size() / 2 + 1;
+        this.executors = new ArrayList<>(connectionFactories.size());
+        for (int i = 0; i < connectionFactories.size(); i++) {
+            final String name = "redis-redlock-" + i;
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(INSTANCE_THREADS, INSTANCE_THREADS, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(INSTANCE_QUEUE_SIZE), r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            executors.add(executor);
+        }
+    }
+
+    @Override
+    public boolean lock(String key, long expire, int retryTimes, long sleepMillis) {
+        return acquire(key, expire, retryTimes, sleepMillis, RetryTemplate.totalWaitMillis(retryTimes, sleepMillis));
+    }
+
+    @Override
+    public boolean lock(String key, long expire, int retryTimes, long sleepMillis, boolean autoRenew) {
+        warnIfAutoRenew(key, autoRenew);
+        return lock(key, expire, retryTimes, sleepMillis);
+    }
+
+    @Override
+    public boolean tryLock(String key, long expire, long waitMillis, long sleepMillis, boolean autoRenew) {
+        warnIfAutoRenew(key, autoRenew);
+        return acquire(key, expire, Integer.MAX_VALUE, sleepMillis, waitMillis);
+    }
+
+    /**
+     * 不支持自动续期，按不续期加锁，expire即租期
+     */
+    private static void warnIfAutoRenew(String key, boolean autoRenew) {
+        if (autoRenew) {
+            LOGGER.warn("RedisRedLock does not support autoRenew, lock without renewal, key:[{}]", key);
+        }
+    }
+
+    /**
+     * 重试间隔随机（forLock），避免多个客户端同时重试又各自拿到少数实例
+     *
+     * @param timeoutMillis 总等待时长ms，负数不限时
+     */
+    private boolean acquire(String key, long expire, int retryTimes, long sleepMillis, long timeoutMillis) {
+        final String token = UUID.randomUUID().toString();
+        final AtomicBoolean active = new AtomicBoolean();
+        Long validUntil = new RetryTemplate(retryTimes, sleepMillis).forLock(sleepMillis, timeoutMillis).execute(new RetryCallBack<Long>() {
+            @Override
+            public Long doWithRetry() {
+                return tryLock(key, token, expire, active);
+            }
+
+            @Override
+            public boolean isComplete(Long result) {
+                return result != null;
+            }
+        });
+        if (validUntil == null) {
+            return false;
+        }
+        threadLocal.get().put(key, new Held(token, validUntil, active));
+        return true;
+    }
+
+    /**
+     * 本地判断：本线程持有且还在有效期内
+     */
+    @Override
+    public boolean isLock(String key) {
+        Held held = threadLocal.get().get(key);
+        return held != null && System.nanoTime() - held.validUntil < 0;
+    }
+
+    @Override
+    public boolean releaseLock(String key) {
+        Held held = threadLocal.get().remove(key);
+        if (held == null) {
+            // 与RedisDistributedLock一致：没有持有记录视为已释放
+            LOGGER.error("Failed to releaseLock ,because token is null , key:[{}]", key);
+            return true;
+        }
+        held.active.set(false);
+        return unlockAll(key, held.token) >= quorum;
+    }
+
+    /**
+     * 一次加锁尝试
+     *
+     * @param active 同一次lock调用的所有尝试共用，持有期间为true
+     * @return 成功返回有效期截止时间（nanoTime），失败返回null
+     */
+    private Long tryLock(String key, String token, long expire, AtomicBoolean active) {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(instanceTimeoutMillis);
+        List<CompletableFuture<Boolean>> futures = submit(connection -> {
+            JedisCommands commands = (JedisCommands) connection.getNativeConnection();
+            String result = commands.set(key, token, "NX", "PX", expire);
+            return result != null && result.length() != 0;
+        }, deadline);
+        List<Boolean> results = await(futures, deadline);
+        int acquired = 0;
+        for (Boolean result : results) {
+            if (Boolean.TRUE.equals(result)) {
+                acquired++;
+            }
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        long drift = (long) (expire * CLOCK_DRIFT_FACTOR) + 2;
+        long validity = expire - elapsed - drift;
+        if (acquired >= quorum && validity > 0) {
+            active.set(true);
+            unlockLate(futures, results, key, token, active);
+            return start + TimeUnit.MILLISECONDS.toNanos(expire - drift);
+        }
+        unlockLate(futures, results, key, token, active);
+        // 没拿到多数或者已经没有有效期，所有实例都释放（包括超时未返回的）
+        if (acquired > 0 || results.contains(null)) {
+            unlockAll(key, token);
+        }
+        return null;
+    }
+
+    /**
+     * @return 释放成功的实例数
+     */
+    private int unlockAll(String key, String token) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(instanceTimeoutMillis);
+        List<Boolean> results = await(submit(unlockAction(key, token), Long.MAX_VALUE), deadline);
+        int released = 0;
+        for (Boolean result : results) {
+            if (Boolean.TRUE.equals(result)) {
+                released++;
+            }
+        }
+        return released;
+    }
+
+    /**
+     * 超时后才成功的SET：本次没拿到锁或者已经释放时补一次释放，否则要等到过期
+     */
+    private void unlockLate(List<CompletableFuture<Boolean>> futures, List<Boolean> results, String key, String token, AtomicBoolean active) {
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i) == null) {
+                final int instance = i;
+                futures.get(i).thenAccept(acquired -> {
+                    if (Boolean.TRUE.equals(acquired) && !active.get()) {
+                        unlock(instance, key, token);
+                    }
+                });
+            }
+        }
+    }
+
+    private void unlock(int instance, String key, String token) {
+        submit(instance, unlockAction(key, token), Long.MAX_VALUE);
+    }
+
+    private static Function<RedisConnection, Boolean> unlockAction(String key, String token) {
+        return connection -> {
+            Jedis jedis = (Jedis) connection.getNativeConnection();
+            Object result = jedis.eval(RedisService.UNLOCK_LUA, Collections.singletonList(key), Collections.singletonList(token));
+            return result instanceof Long && (Long) result > 0;
+        };
+    }
+
+    /**
+     * 在每个实例自己的线程池上执行
+     *
+     * @param startDeadline 到这个时间（nanoTime）还没开始执行就放弃，结果为null；不放弃传Long.MAX_VALUE
+     */
+    private List<CompletableFuture<Boolean>> submit(Function<RedisConnection, Boolean> action, long startDeadline) {
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>(connectionFactories.size());
+        for (int i = 0; i < connectionFactories.size(); i++) {
+            futures.add(submit(i, action, startDeadline));
+        }
+        return futures;
+    }
+
+    private CompletableFuture<Boolean> submit(int instance, Function<RedisConnection, Boolean> action, long startDeadline) {
+        final RedisConnectionFactory factory = connectionFactories.get(instance);
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                if (startDeadline != Long.MAX_VALUE && System.nanoTime() - startDeadline > 0) {
+                    return null;// 排队期间已经超时，结果不会再被使用
+                }
+                RedisConnection connection = factory.getConnection();
+                try {
+                    return action.apply(connection);
+                } catch (Exception e) {
+                    LOGGER.error("Redlock instance failed", e);
+                    return false;
+                } finally {
+                    connection.close();
+                }
+            }, executors.get(instance));
+        } catch (RejectedExecutionException e) {
+            // 该实例的队列已满，多半已经卡住
+            LOGGER.error("Redlock instance {} is overloaded", instance);
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+
+    /**
+     * 等待所有实例，最多到deadline（nanoTime）
+     *
+     * @return 每个实例的结果，失败为false，超时为null
+     */
+    private static List<Boolean> await(List<CompletableFuture<Boolean>> futures, long deadline) {
+        List<Boolean> results = new ArrayList<>(futures.size());
+        for (CompletableFuture<Boolean> future : futures) {
+            try {
+                results.add(future.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                results.add(null);
+            } catch (Exception e) {
+                results.add(null);
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public void destroy() {
+        for (ThreadPoolExecutor executor : executors) {
+            executor.shutdownNow();
+        }
+    }
+
+    public long getInstanceTimeoutMillis() {
+        return instanceTimeoutMillis;
+    }
+
+    public void setInstanceTimeoutMillis(long instanceTimeoutMillis) {
+        this.instanceTimeoutMillis = instanceTimeoutMillis;
+    }
+
+    public int getQuorum() {
+        return quorum;
+    }
+
+    private static final class Held {
+
+        private final String token;
+
+        private final long validUntil;
+
+        private final AtomicBoolean active;
+
+        private Held(String token, long validUntil, AtomicBoolean active) {
+            this.token = token;
+            this.validUntil = validUntil;
+            this.active = active;
+        }
+    }
+}
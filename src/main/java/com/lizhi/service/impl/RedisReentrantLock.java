@@ -0,0 +1,171 @@
+package com.lizhi.service.impl;
+
+import com.lizhi.service.AbstractDistributedLock;
+import com.lizhi.utils.RetryCallBack;
+import com.lizhi.utils.RetryTemplate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 可重入锁
+ * <p>
+ * 锁是一个hash：field为持有者（实例id:线程id），value为重入次数，加锁和解锁都由lua脚本完成。
+ * 持有者再次加锁只是计数加一，有效期取剩余有效期和本次expire中较长的一个，一次往返，不会等待；解锁计数减一，减到0才删除key并发布释放通知。
+ * <p>
+ * 持有者由线程决定，不依赖ThreadLocal保存的value，所以同一线程嵌套锁同一个key或者不同的key都互不影响。
+ */
+@Component
+public class RedisReentrantLock extends AbstractDistributedLock {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RedisReentrantLock.class);
+
+    /**
+     * 区分不同JVM里线程id相同的线程
+     */
+    private static final String INSTANCE_ID = UUID.randomUUID().toString();
+
+    /**
+     * 成功返回重入次数，失败返回0
+     */
+    private static final String LOCK_LUA;
+
+    static {
+        StringBuilder sb = new StringBuilder();
+        sb.append("if redis.call(\"exists\",KEYS[1]) == 0 or redis.call(\"hexists\",KEYS[1],ARGV[2]) == 1 ");
+        sb.append("then ");
+        sb.append("    local count = redis.call(\"hincrby\",KEYS[1],ARGV[2],1) ");
+        // 只延长不缩短：内层用较短的有效期重入时不能缩短外层的租期
+        sb.append("    if redis.call(\"pttl\",KEYS[1]) < tonumber(ARGV[1]) then ");
+        sb.append("        redis.call(\"pexpire\",KEYS[1],ARGV[1]) ");
+        sb.append("    end ");
+        sb.append("    return count ");
+        sb.append("end ");
+        sb.append("return 0 ");
+        LOCK_LUA = sb.toString();
+    }
+
+    /**
+     * 不是持有者返回-1，还有重入返回0，彻底释放返回1
+     */
+    private static final String UNLOCK_LUA;
+
+    static {
+        StringBuilder sb = new StringBuilder();
+        sb.append("if redis.call(\"hexists\",KEYS[1],ARGV[1]) == 0 ");
+        sb.append("then ");
+        sb.append("    return -1 ");
+        sb.append("end ");
+        sb.append("if redis.call(\"hincrby\",KEYS[1],ARGV[1],-1) > 0 ");
+        sb.append("then ");
+        sb.append("    return 0 ");
+        sb.append("end ");
+        sb.append("redis.call(\"del\",KEYS[1]) ");
+        sb.append("redis.call(\"publish\",ARGV[2],KEYS[1]) ");
+        sb.append("return 1 ");
+        UNLOCK_LUA = sb.toString();
+    }
+
+    private static final String IS_LOCK_LUA = "return redis.call(\"hexists\",KEYS[1],ARGV[1]) ";
+
+    @Autowired
+    private RedisService redisService;
+
+    @Autowired
+    private LockReleaseNotifier notifier;
+
+    @Autowired
+    private LockWatchdog watchdog;
+
+    @Override
+    public boolean lock(String key, long expire, int retryTimes, long sleepMillis) {
+        return lock(key, expire, retryTimes, sleepMillis, false);
+    }
+
+    @Override
+    public boolean lock(String key, long expire, int retryTimes, long sleepMillis, boolean autoRenew) {
+        return acquire(key, expire, retryTimes, sleepMillis, RetryTemplate.totalWaitMillis(retryTimes, sleepMillis), autoRenew);
+    }
+
+    @Override
+    public boolean tryLock(String key, long expire, long waitMillis, long sleepMillis, boolean autoRenew) {
+        return acquire(key, expire, Integer.MAX_VALUE, sleepMillis, waitMillis, autoRenew);
+    }
+
+    /**
+     * @param timeoutMillis 总等待时长ms，负数不限时
+     */
+    private boolean acquire(String key, long expire, int retryTimes, long sleepMillis, long timeoutMillis, boolean autoRenew) {
+        final String owner = owner();
+        final List<String> keys = Collections.singletonList(key);
+        final List<String> args = Arrays.asList(String.valueOf(expire), owner);
+        try (LockReleaseNotifier.Waiter waiter = notifier.newWaiter(key)) {
+            Long count = new RetryTemplate(retryTimes, sleepMillis) {
+                @Override
+                public void waitForRetry(long millis) throws InterruptedException {
+                    waiter.await(millis);
+                }
+            }.forLock(sleepMillis, timeoutMillis).execute(new RetryCallBack<Long>() {
+                @Override
+                public Long doWithRetry() {
+                    waiter.mark();
+                    return (Long) redisService.eval(LOCK_LUA, keys, args);
+                }
+
+                @Override
+                public boolean isComplete(Long result) {
+                    return result != null && result > 0;
+                }
+            });
+            if (count == null) {
+                return false;
+            }
+            // 只在第一次拿到时登记续期，重入不重复登记
+            if (autoRenew && count == 1) {
+                watchdog.watch(key, owner, expire);
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public boolean isLock(String key) {
+        try {
+            Long result = (Long) redisService.eval(IS_LOCK_LUA, Collections.singletonList(key), Collections.singletonList(owner()));
+            return result != null && result == 1;
+        } catch (Exception e) {
+            LOGGER.error("Failed to check lock, key:[{}]", key, e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean releaseLock(String key) {
+        try {
+            String owner = owner();
+            Long result = (Long) redisService.eval(UNLOCK_LUA, Collections.singletonList(key),
+                    Arrays.asList(owner, LockReleaseNotifier.channel(key)));
+            if (result == null || result < 0) {
+                LOGGER.error("Failed to releaseLock, lock is not held by current thread, key:[{}]", key);
+                return false;
+            }
+            if (result > 0) {
+                watchdog.unwatch(key, owner);
+            }
+            return true;
+        } catch (Exception e) {
+            LOGGER.error("Failed to releaseLock", e);
+            return false;
+        }
+    }
+
+    private static String owner() {
+        return INSTANCE_ID + ":" + Thread.currentThread().getId();
+    }
+}
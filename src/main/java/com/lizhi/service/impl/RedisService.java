@@ -1,29 +1,45 @@
 package com.lizhi.service.impl;
 
 import com.lizhi.service.IRedisBloomFilter;
+import com.lizhi.service.IRedisCountingBloomFilter;
+import com.lizhi.service.IRedisCuckooFilter;
 import com.lizhi.service.IRedisService;
+import com.lizhi.utils.BloomFilterStatsListener;
+import com.lizhi.utils.HashStrategy;
 import com.lizhi.utils.PipelineTemplete;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.MessageListener;
 import org.springframework.data.redis.connection.RedisConnection;
 import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisOperations;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.PatternTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Service;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisCluster;
 import redis.clients.jedis.JedisCommands;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
 
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 
 @Service
-public class RedisService implements IRedisService {
+public class RedisService implements IRedisService, DisposableBean {
 
     private static Logger log = LoggerFactory.getLogger(RedisService.class);
 
@@ -40,9 +56,62 @@ public class RedisService implements IRedisService {
         UNLOCK_LUA = sb.toString();
     }
 
+    public static final String UNLOCK_AND_PUBLISH_LUA;
+
+    static {
+        StringBuilder sb = new StringBuilder();
+        sb.append("if redis.call(\"get\",KEYS[1]) == ARGV[1] ");
+        sb.append("then ");
+        sb.append("    redis.call(\"del\",KEYS[1]) ");
+        sb.append("    redis.call(\"publish\",ARGV[2],KEYS[1]) ");
+        sb.append("    return 1 ");
+        sb.append("else ");
+        sb.append("    return 0 ");
+        sb.append("end ");
+        UNLOCK_AND_PUBLISH_LUA = sb.toString();
+    }
+
+    /**
+     * 锁还在自己手上时续期，返回字符串：Pipeline.eval按字符串解析返回值
+     * 普通锁是string，value为持有者；可重入锁是hash，field为持有者
+     */
+    public static final String RENEW_LUA;
+
+    static {
+        StringBuilder sb = new StringBuilder();
+        sb.append("local t = redis.call(\"type\",KEYS[1])[\"ok\"] ");
+        sb.append("if (t == \"string\" and redis.call(\"get\",KEYS[1]) == ARGV[1]) ");
+        sb.append("    or (t == \"hash\" and redis.call(\"hexists\",KEYS[1],ARGV[1]) == 1) ");
+        sb.append("then ");
+        // 只延长不缩短，多个读者共用的hash不会被租期短的读者缩短
+        sb.append("    if redis.call(\"pttl\",KEYS[1]) < tonumber(ARGV[2]) then ");
+        sb.append("        redis.call(\"pexpire\",KEYS[1],ARGV[2]) ");
+        sb.append("    end ");
+        sb.append("    return \"1\" ");
+        sb.append("else ");
+        sb.append("    return \"0\" ");
+        sb.append("end ");
+        RENEW_LUA = sb.toString();
+    }
+
+    /**
+     * 脚本 -> SHA1
+     */
+    private static final Map<String, String> SCRIPT_SHA = new ConcurrentHashMap<>();
+
     @Autowired
     private RedisTemplate redisTemplate;
 
+    /**
+     * pub/sub监听容器，第一次订阅时创建
+     */
+    private volatile RedisMessageListenerContainer listenerContainer;
+
+    /**
+     * 是否集群模式，第一次用到时判断
+     */
+    private volatile Boolean cluster;
+
 
     @Override
     public void remove(final String... keys) {
@@ -182,13 +251,66 @@ public class RedisService implements IRedisService {
 
 
     @Override
-    public IRedisBloomFilter getBloomFilter(double falsePositiveProbability, int expectedNumberOfElements) {
+    public void subscribe(MessageListener listener, String channel) {
+        listenerContainer().addMessageListener(listener, new ChannelTopic(channel));
+    }
+
+
+    @Override
+    public void unsubscribe(MessageListener listener, String channel) {
+        listenerContainer().removeMessageListener(listener, new ChannelTopic(channel));
+    }
+
+    @Override
+    public void psubscribe(MessageListener listener, String pattern) {
+        listenerContainer().addMessageListener(listener, new PatternTopic(pattern));
+    }
+
+
+    @Override
+    public void punsubscribe(MessageListener listener, String pattern) {
+        listenerContainer().removeMessageListener(listener, new PatternTopic(pattern));
+    }
+
+    private RedisMessageListenerContainer listenerContainer() {
+        if (listenerContainer == null) {
+            synchronized (this) {
+                if (listenerContainer == null) {
+                    RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+                    container.setConnectionFactory(redisTemplate.getConnectionFactory());
+                    container.afterPropertiesSet();
+                    container.start();
+                    listenerContainer = container;
+                }
+            }
+        }
+        return listenerContainer;
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (listenerContainer != null) {
+            listenerContainer.destroy();
+        }
+    }
+
+
+    @Override
+    public IRedisBloomFilter getBloomFilter(double falsePositiveProbability, long expectedNumberOfElements) {
         RedisBloomFilter redisBloomFilter = new RedisBloomFilter(falsePositiveProbability, expectedNumberOfElements);
         redisBloomFilter.setRedisService(this);
         return redisBloomFilter;
     }
 
 
+    @Override
+    public IRedisBloomFilter getBloomFilter(double falsePositiveProbability, long expectedNumberOfElements, HashStrategy hashStrategy) {
+        RedisBloomFilter redisBloomFilter = new RedisBloomFilter(falsePositiveProbability, expectedNumberOfElements, hashStrategy);
+        redisBloomFilter.setRedisService(this);
+        return redisBloomFilter;
+    }
+
+
     @Override
     public IRedisBloomFilter getBloomFilter() {
         RedisBloomFilter redisBloomFilter = new RedisBloomFilter();
@@ -197,6 +319,100 @@ public class RedisService implements IRedisService {
     }
 
 
+    @Override
+    public IRedisBloomFilter getLuaBloomFilter(double falsePositiveProbability, long expectedNumberOfElements) {
+        LuaRedisBloomFilter redisBloomFilter = new LuaRedisBloomFilter(falsePositiveProbability, expectedNumberOfElements);
+        redisBloomFilter.setRedisService(this);
+        return redisBloomFilter;
+    }
+
+
+    @Override
+    public IRedisBloomFilter getLuaBloomFilter() {
+        LuaRedisBloomFilter redisBloomFilter = new LuaRedisBloomFilter();
+        redisBloomFilter.setRedisService(this);
+        return redisBloomFilter;
+    }
+
+
+    @Override
+    public IRedisBloomFilter getMirroredBloomFilter(double falsePositiveProbability, long expectedNumberOfElements, long refreshInterval, TimeUnit timeUnit) {
+        MirroredRedisBloomFilter redisBloomFilter = new MirroredRedisBloomFilter(falsePositiveProbability, expectedNumberOfElements);
+        redisBloomFilter.setRedisService(this);
+        redisBloomFilter.start(refreshInterval, timeUnit);
+        return redisBloomFilter;
+    }
+
+
+    @Override
+    public IRedisBloomFilter getBufferedBloomFilter(double falsePositiveProbability, long expectedNumberOfElements, long flushInterval, TimeUnit timeUnit) {
+        BufferedRedisBloomFilter redisBloomFilter = new BufferedRedisBloomFilter(falsePositiveProbability, expectedNumberOfElements);
+        redisBloomFilter.setRedisService(this);
+        redisBloomFilter.start(flushInterval, timeUnit);
+        return redisBloomFilter;
+    }
+
+
+    @Override
+    public IRedisBloomFilter getScalableBloomFilter(double falsePositiveProbability, int initialCapacity) {
+        ScalableRedisBloomFilter redisBloomFilter = new ScalableRedisBloomFilter(falsePositiveProbability, initialCapacity);
+        redisBloomFilter.setRedisService(this);
+        return redisBloomFilter;
+    }
+
+
+    @Override
+    public IRedisBloomFilter getShardedBloomFilter(double falsePositiveProbability, long expectedNumberOfElements, int numberOfShards) {
+        long expectedNumberOfShardElements = (expectedNumberOfElements + numberOfShards - 1) / numberOfShards;
+        ShardedRedisBloomFilter<Object> redisBloomFilter = new ShardedRedisBloomFilter<>(
+                new LuaRedisBloomFilter<>(falsePositiveProbability, expectedNumberOfShardElements), numberOfShards);
+        redisBloomFilter.setRedisService(this);
+        return redisBloomFilter;
+    }
+
+
+    @Override
+    public IRedisCountingBloomFilter getCountingBloomFilter(double falsePositiveProbability, long expectedNumberOfElements) {
+        CountingRedisBloomFilter redisBloomFilter = new CountingRedisBloomFilter(falsePositiveProbability, expectedNumberOfElements);
+        redisBloomFilter.setRedisService(this);
+        return redisBloomFilter;
+    }
+
+
+    @Override
+    public IRedisBloomFilter getWindowedBloomFilter(double falsePositiveProbability, long expectedNumberOfElements, long window, TimeUnit timeUnit, int generations) {
+        WindowedRedisBloomFilter redisBloomFilter = new WindowedRedisBloomFilter(falsePositiveProbability, expectedNumberOfElements, window, timeUnit, generations);
+        redisBloomFilter.setRedisService(this);
+        return redisBloomFilter;
+    }
+
+
+    @Override
+    public IRedisCuckooFilter getCuckooFilter(long capacity) {
+        RedisCuckooFilter redisCuckooFilter = new RedisCuckooFilter(capacity);
+        redisCuckooFilter.setRedisService(this);
+        return redisCuckooFilter;
+    }
+
+
+    @Override
+    public IRedisBloomFilter getMonitoredBloomFilter(double falsePositiveProbability, long expectedNumberOfElements, long checkInterval, TimeUnit timeUnit, BloomFilterStatsListener listener) {
+        MonitoredRedisBloomFilter redisBloomFilter = new MonitoredRedisBloomFilter(falsePositiveProbability, expectedNumberOfElements);
+        redisBloomFilter.setRedisService(this);
+        redisBloomFilter.addListener(listener);
+        redisBloomFilter.start(checkInterval, timeUnit);
+        return redisBloomFilter;
+    }
+
+
+    @Override
+    public IRedisCuckooFilter getCuckooFilter() {
+        RedisCuckooFilter redisCuckooFilter = new RedisCuckooFilter();
+        redisCuckooFilter.setRedisService(this);
+        return redisCuckooFilter;
+    }
+
+
     @Override
     public boolean setBit(String key, long index, boolean value) {
         try {
@@ -232,6 +448,73 @@ public class RedisService implements IRedisService {
     }
 
 
+    @Override
+    public boolean setBits(final String key, final long[] indexes, final boolean value) {
+        try {
+            final byte[] rawKey = rawKey(key);
+            redisTemplate.executePipelined(new RedisCallback<Object>() {
+                @Override
+                public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                    for (long index : indexes) {
+                        connection.setBit(rawKey, index, value);
+                    }
+                    return null;
+                }
+            });
+            return true;
+        } catch (Exception e) {
+            log.error("Redis Failed to setBits", e);
+            return false;
+        }
+    }
+
+
+    @Override
+    public boolean[] getBits(final String key, final long[] indexes) {
+        final byte[] rawKey = rawKey(key);
+        List<Object> results = redisTemplate.executePipelined(new RedisCallback<Object>() {
+            @Override
+            public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                for (long index : indexes) {
+                    connection.getBit(rawKey, index);
+                }
+                return null;
+            }
+        });
+        boolean[] bits = new boolean[indexes.length];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = Boolean.TRUE.equals(results.get(i));
+        }
+        return bits;
+    }
+
+
+    @Override
+    public byte[] getRange(final String key, final long start, final long end) {
+        final byte[] rawKey = rawKey(key);
+        byte[] bytes = (byte[]) redisTemplate.execute(new RedisCallback<byte[]>() {
+            @Override
+            public byte[] doInRedis(RedisConnection connection) throws DataAccessException {
+                return connection.getRange(rawKey, start, end);
+            }
+        });
+        return bytes == null ? new byte[0] : bytes;
+    }
+
+
+    @Override
+    public long bitCount(final String key) {
+        final byte[] rawKey = rawKey(key);
+        Long count = (Long) redisTemplate.execute(new RedisCallback<Long>() {
+            @Override
+            public Long doInRedis(RedisConnection connection) throws DataAccessException {
+                return connection.bitCount(rawKey);
+            }
+        });
+        return count == null ? 0 : count;
+    }
+
+
     @Override
     public boolean expire(String key, Long expireTime, TimeUnit timeUnit) {
         try {
@@ -280,19 +563,7 @@ public class RedisService implements IRedisService {
             args.add(value);
 
             // 使用lua脚本删除redis中匹配value的key，可以避免由于方法执行时间过长而redis锁自动过期失效的时候误删其他线程的锁
-            // spring自带的执行脚本方法中，集群模式直接抛出不支持执行脚本的异常，所以只能拿到原redis的connection来执行脚本
-            Long result = (Long) redisTemplate.execute(new RedisCallback() {
-                public Long doInRedis(RedisConnection connection) throws DataAccessException {
-                    Object nativeConnection = connection.getNativeConnection();
-                    // 集群模式和单机模式虽然执行脚本的方法一样，但是没有共同的接口，所以只能分开执行
-                    if (nativeConnection instanceof JedisCluster) {  // 集群模式
-                        return (Long) ((JedisCluster) nativeConnection).eval(UNLOCK_LUA, keys, args);
-                    } else if (nativeConnection instanceof Jedis) {// 单机模式
-                        return (Long) ((Jedis) nativeConnection).eval(UNLOCK_LUA, keys, args);
-                    }
-                    return 0L;
-                }
-            });
+            Long result = (Long) eval(UNLOCK_LUA, keys, args);
             return result != null && result > 0;
         } catch (Exception e) {
             log.error("release lock occured an exception", e);
@@ -300,6 +571,127 @@ public class RedisService implements IRedisService {
         return false;
     }
 
+    @Override
+    public boolean releaseLock(String key, String value, String channel) {
+        try {
+            List<String> keys = new ArrayList<String>();
+            keys.add(key);
+            List<String> args = new ArrayList<String>();
+            args.add(value);
+            args.add(channel);
+
+            Long result = (Long) eval(UNLOCK_AND_PUBLISH_LUA, keys, args);
+            return result != null && result > 0;
+        } catch (Exception e) {
+            log.error("release lock occured an exception", e);
+        }
+        return false;
+    }
+
+    @Override
+    public boolean[] renewLocks(final String[] keys, final String[] values, final long[] expireMillis) {
+        final boolean[] renewed = new boolean[keys.length];
+        redisTemplate.execute(new RedisCallback<Object>() {
+            public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                Object nativeConnection = connection.getNativeConnection();
+                if (nativeConnection instanceof JedisCluster) {  // 集群模式，key分布在不同slot，逐个执行
+                    JedisCluster cluster = (JedisCluster) nativeConnection;
+                    for (int i = 0; i < keys.length; i++) {
+                        Object result = cluster.eval(RENEW_LUA, Collections.singletonList(keys[i]),
+                                Arrays.asList(values[i], String.valueOf(expireMillis[i])));
+                        renewed[i] = "1".equals(result);
+                    }
+                } else if (nativeConnection instanceof Jedis) {// 单机模式，一次管道发送全部续期
+                    Pipeline pipeline = ((Jedis) nativeConnection).pipelined();
+                    List<Response<String>> responses = new ArrayList<>(keys.length);
+                    for (int i = 0; i < keys.length; i++) {
+                        responses.add(pipeline.eval(RENEW_LUA, Collections.singletonList(keys[i]),
+                                Arrays.asList(values[i], String.valueOf(expireMillis[i]))));
+                    }
+                    pipeline.sync();
+                    for (int i = 0; i < keys.length; i++) {
+                        renewed[i] = "1".equals(responses.get(i).get());
+                    }
+                } else {
+                    throw new UnsupportedOperationException("Unsupported redis connection: " + nativeConnection.getClass().getName());
+                }
+                return null;
+            }
+        });
+        return renewed;
+    }
+
+    @Override
+    public boolean isCluster() {
+        Boolean result = cluster;
+        if (result == null) {
+            result = (Boolean) redisTemplate.execute(new RedisCallback<Boolean>() {
+                public Boolean doInRedis(RedisConnection connection) throws DataAccessException {
+                    return connection.getNativeConnection() instanceof JedisCluster;
+                }
+            });
+            cluster = result;
+        }
+        return result;
+    }
+
+    @Override
+    public Object eval(final String script, final List<String> keys, final List<String> args) {
+        final String sha = SCRIPT_SHA.computeIfAbsent(script, RedisService::sha1);
+        // spring自带的执行脚本方法中，集群模式直接抛出不支持执行脚本的异常，所以只能拿到原redis的connection来执行脚本
+        return redisTemplate.execute(new RedisCallback<Object>() {
+            public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                Object nativeConnection = connection.getNativeConnection();
+                // 集群模式和单机模式虽然执行脚本的方法一样，但是没有共同的接口，所以只能分开执行
+                if (nativeConnection instanceof JedisCluster) {  // 集群模式
+                    JedisCluster cluster = (JedisCluster) nativeConnection;
+                    try {
+                        return cluster.evalsha(sha, keys, args);
+                    } catch (JedisDataException e) {
+                        if (!isNoScript(e)) {
+                            throw e;
+                        }
+                        return cluster.eval(script, keys, args);
+                    }
+                } else if (nativeConnection instanceof Jedis) {// 单机模式
+                    Jedis jedis = (Jedis) nativeConnection;
+                    try {
+                        return jedis.evalsha(sha, keys, args);
+                    } catch (JedisDataException e) {
+                        if (!isNoScript(e)) {
+                            throw e;
+                        }
+                        return jedis.eval(script, keys, args);
+                    }
+                }
+                throw new UnsupportedOperationException("Unsupported redis connection: " + nativeConnection.getClass().getName());
+            }
+        });
+    }
+
+    /**
+     * redis上没有该SHA1对应的脚本（首次执行或者执行过SCRIPT FLUSH、节点重启）
+     */
+    private static boolean isNoScript(JedisDataException e) {
+        return e.getMessage() != null && e.getMessage().startsWith("NOSCRIPT");
+    }
+
+    /**
+     * 与redis计算脚本SHA1的方式一致
+     */
+    private static String sha1(String script) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(script.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not supported", e);
+        }
+    }
+
     @Override
     public boolean setIfAbsent(String key, Object value, long expireTime, TimeUnit timeUnit) {
         return (Boolean) redisTemplate.execute(new SessionCallback<Boolean>() {
@@ -317,6 +709,10 @@ public class RedisService implements IRedisService {
         });
     }
 
+    private byte[] rawKey(String key) {
+        return redisTemplate.getKeySerializer().serialize(key);
+    }
+
     @Override
     public List<Object> pipeline(PipelineTemplete pipelineTemplete) {
         return (List<Object>) redisTemplate.execute(new RedisCallback<List<Object>>() {
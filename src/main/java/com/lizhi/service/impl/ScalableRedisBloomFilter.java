@@ -0,0 +1,373 @@
+package com.lizhi.service.impl;
+
+import com.lizhi.service.IRedisBloomFilter;
+import com.lizhi.service.IRedisService;
+import com.lizhi.utils.HashStrategy;
+import com.lizhi.utils.Murmur3HashStrategy;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 可自动扩容的布隆过滤（Scalable Bloom Filter）
+ * <p>
+ * 过滤器由多层位图组成，第i层（从0开始）的容量为 initialCapacity * growthFactor^i，
+ * 容错率为 falsePositiveProbability * (1 - tighteningRatio) * tighteningRatio^i，
+ * 所以不论扩容多少次，总容错率都不超过 falsePositiveProbability。
+ * 新元素只写入最新一层，该层插入数达到容量后自动新增一层。
+ * <p>
+ * redis中的结构（使用hash tag，集群模式下都在同一个slot）：
+ * {key}:meta  hash，layers为层数，count:i为第i层插入数
+ * {key}:i     第i层位图
+ * <p>
+ * add/contains均为一次EVALSHA：先从最新一层开始检查元素是否存在，add在不存在时写入最新一层并计数。
+ * 客户端缓存层数，脚本发现层数过期时返回最新层数，客户端更新后重试。
+ *
+ * @param <E>
+ */
+public class ScalableRedisBloomFilter<E> implements IRedisBloomFilter<E> {
+
+    /**
+     * KEYS[1]为meta，KEYS[2..L+1]为各层位图；ARGV[1]为层数L，ARGV[2..L+1]为各层哈希函数个数，
+     * 其后每个元素依次为第0层到第L-1层的下标。返回每个元素的结果，层数过期时返回{-层数}
+     */
+    private static final String CONTAINS_LUA;
+
+    /**
+     * 参数同CONTAINS_LUA，ARGV[L+2]为最新一层的容量。返回每个元素的结果，1：新增 0：已存在；
+     * 最新一层写满时扩容并停止，结果数少于元素数，剩余元素需客户端按新层数重新计算下标
+     */
+    private static final String ADD_LUA;
+
+    private static final String INIT_LUA;
+
+    static {
+        StringBuilder check = new StringBuilder();
+        check.append("    local present = 0 ");
+        check.append("    local pos = base + width ");
+        check.append("    for i = L, 1, -1 do ");
+        check.append("        pos = pos - k[i] ");
+        check.append("        local all = 1 ");
+        check.append("        for j = pos, pos + k[i] - 1 do ");
+        check.append("            if redis.call('getbit', KEYS[i + 1], ARGV[j]) == 0 then ");
+        check.append("                all = 0 ");
+        check.append("                break ");
+        check.append("            end ");
+        check.append("        end ");
+        check.append("        if all == 1 then ");
+        check.append("            present = 1 ");
+        check.append("            break ");
+        check.append("        end ");
+        check.append("    end ");
+
+        StringBuilder header = new StringBuilder();
+        header.append("local layers = tonumber(redis.call('hget', KEYS[1], 'layers') or '1') ");
+        header.append("local L = tonumber(ARGV[1]) ");
+        header.append("if layers ~= L then ");
+        header.append("    return {-layers} ");
+        header.append("end ");
+        header.append("local k = {} ");
+        header.append("local width = 0 ");
+        header.append("for i = 1, L do ");
+        header.append("    k[i] = tonumber(ARGV[i + 1]) ");
+        header.append("    width = width + k[i] ");
+        header.append("end ");
+        header.append("local result = {} ");
+
+        StringBuilder sb = new StringBuilder(header);
+        sb.append("for base = L + 2, #ARGV, width do ");
+        sb.append(check);
+        sb.append("    result[#result + 1] = present ");
+        sb.append("end ");
+        sb.append("return result ");
+        CONTAINS_LUA = sb.toString();
+
+        sb = new StringBuilder(header);
+        sb.append("local capacity = tonumber(ARGV[L + 2]) ");
+        sb.append("local newest = KEYS[L + 1] ");
+        sb.append("for base = L + 3, #ARGV, width do ");
+        sb.append(check);
+        sb.append("    result[#result + 1] = 1 - present ");
+        sb.append("    if present == 0 then ");
+        sb.append("        for j = base + width - k[L], base + width - 1 do ");
+        sb.append("            redis.call('setbit', newest, ARGV[j], 1) ");
+        sb.append("        end ");
+        sb.append("        if redis.call('hincrby', KEYS[1], 'count:' .. (L - 1), 1) >= capacity then ");
+        sb.append("            redis.call('hset', KEYS[1], 'layers', L + 1) ");
+        sb.append("            break ");
+        sb.append("        end ");
+        sb.append("    end ");
+        sb.append("end ");
+        // 新的一层沿用meta的失效时间
+        sb.append("local ttl = redis.call('pttl', KEYS[1]) ");
+        sb.append("if ttl > 0 and redis.call('pttl', newest) == -1 then ");
+        sb.append("    redis.call('pexpire', newest, ttl) ");
+        sb.append("end ");
+        sb.append("return result ");
+        ADD_LUA = sb.toString();
+
+        sb = new StringBuilder();
+        sb.append("redis.call('hsetnx', KEYS[1], 'layers', 1) ");
+        sb.append("if tonumber(ARGV[1]) > 0 then ");
+        sb.append("    for i = 1, #KEYS do ");
+        sb.append("        redis.call('pexpire', KEYS[i], ARGV[1]) ");
+        sb.append("    end ");
+        sb.append("end ");
+        sb.append("return 1 ");
+        INIT_LUA = sb.toString();
+    }
+
+    private IRedisService redisService;
+
+    private final Charset charset = Charset.forName("UTF-8");
+
+    private final HashStrategy hashStrategy;
+
+    private final double falsePositiveProbability;
+
+    private final int initialCapacity;
+
+    private final double growthFactor;
+
+    private final double tighteningRatio;
+
+    /**
+     * 最多向一次EVALSHA传入的下标个数
+     */
+    private int batchSize = 10000;
+
+    /**
+     * 各层的参数，按需计算
+     */
+    private final List<Layer> layerSettings = new ArrayList<>();
+
+    /**
+     * key -> 本地缓存的层数
+     */
+    private final Map<String, Integer> layers = new ConcurrentHashMap<>();
+
+    public ScalableRedisBloomFilter() {
+        this(0.0001, 600000);
+    }
+
+    /**
+     * @param falsePositiveProbability 总容错率
+     * @param initialCapacity          第一层的容量
+     */
+    public ScalableRedisBloomFilter(double falsePositiveProbability, int initialCapacity) {
+        this(falsePositiveProbability, initialCapacity, 2, 0.5, Murmur3HashStrategy.INSTANCE);
+    }
+
+    /**
+     * @param falsePositiveProbability 总容错率
+     * @param initialCapacity          第一层的容量
+     * @param growthFactor             每一层相对上一层的容量倍数
+     * @param tighteningRatio          每一层相对上一层的容错率比例，(0, 1)
+     * @param hashStrategy             哈希策略
+     */
+    public ScalableRedisBloomFilter(double falsePositiveProbability, int initialCapacity, double growthFactor,
+                                    double tighteningRatio, HashStrategy hashStrategy) {
+        if (growthFactor < 1) {
+            throw new IllegalArgumentException("growthFactor must be at least 1");
+        }
+        if (tighteningRatio <= 0 || tighteningRatio >= 1) {
+            throw new IllegalArgumentException("tighteningRatio must be between 0 and 1");
+        }
+        this.falsePositiveProbability = falsePositiveProbability;
+        this.initialCapacity = initialCapacity;
+        this.growthFactor = growthFactor;
+        this.tighteningRatio = tighteningRatio;
+        this.hashStrategy = hashStrategy;
+    }
+
+    @Override
+    public void setRedisService(IRedisService redisService) {
+        this.redisService = redisService;
+    }
+
+    @Override
+    public void init(String key, long expireTime, TimeUnit timeUnit) {
+        init(key, timeUnit.toMillis(expireTime));
+    }
+
+    @Override
+    public void init(String key) {
+        init(key, -1);
+    }
+
+    private void init(String key, long expireMillis) {
+        int layerCount = layerCount(key);
+        List<String> keys = keys(key, layerCount);
+        // 已存在的层一并设置失效时间
+        redisService.eval(INIT_LUA, keys, Collections.singletonList(String.valueOf(expireMillis)));
+    }
+
+    @Override
+    public void add(String key, E element) {
+        addAll(key, Collections.singletonList(element));
+    }
+
+    @Override
+    public void addAll(String key, Collection<? extends E> c) {
+        List<byte[]> elements = bytes(c);
+        int from = 0;
+        while (from < elements.size()) {
+            int layerCount = layerCount(key);
+            int to = Math.min(from + elementsPerBatch(layerCount), elements.size());
+            List<String> args = args(layerCount, elements, from, to);
+            args.add(layerCount + 1, String.valueOf(layer(layerCount - 1).capacity));
+            List<?> results = (List<?>) redisService.eval(ADD_LUA, keys(key, layerCount), args);
+            if (isStale(key, results)) {
+                continue;
+            }
+            from += results.size();
+            if (from < to) {
+                // 最新一层已写满，剩余元素写入新的一层
+                layers.put(key, layerCount + 1);
+            }
+        }
+    }
+
+    @Override
+    public boolean contains(String key, E element) {
+        return containsEach(key, Collections.singletonList(element))[0];
+    }
+
+    @Override
+    public boolean containsAll(String key, Collection<? extends E> c) {
+        for (boolean present : containsEach(key, c)) {
+            if (!present) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean[] containsEach(String key, Collection<? extends E> c) {
+        List<byte[]> elements = bytes(c);
+        boolean[] result = new boolean[elements.size()];
+        int from = 0;
+        while (from < elements.size()) {
+            int layerCount = layerCount(key);
+            int to = Math.min(from + elementsPerBatch(layerCount), elements.size());
+            List<?> results = (List<?>) redisService.eval(CONTAINS_LUA, keys(key, layerCount), args(layerCount, elements, from, to));
+            if (isStale(key, results)) {
+                continue;
+            }
+            for (int i = from; i < to; i++) {
+                result[i] = (Long) results.get(i - from) > 0;
+            }
+            from = to;
+        }
+        return result;
+    }
+
+    /**
+     * 脚本返回{-层数}说明本地缓存的层数已过期
+     */
+    private boolean isStale(String key, List<?> results) {
+        if (!results.isEmpty() && (Long) results.get(0) < 0) {
+            layers.put(key, (int) -(Long) results.get(0));
+            return true;
+        }
+        return false;
+    }
+
+    private int layerCount(String key) {
+        return layers.getOrDefault(key, 1);
+    }
+
+    private List<String> keys(String key, int layerCount) {
+        List<String> keys = new ArrayList<>(layerCount + 1);
+        keys.add("{" + key + "}:meta");
+        for (int i = 0; i < layerCount; i++) {
+            keys.add("{" + key + "}:" + i);
+        }
+        return keys;
+    }
+
+    private List<String> args(int layerCount, List<byte[]> elements, int from, int to) {
+        List<String> args = new ArrayList<>();
+        args.add(String.valueOf(layerCount));
+        for (int i = 0; i < layerCount; i++) {
+            args.add(String.valueOf(layer(i).numberOfHashFunctions));
+        }
+        for (int e = from; e < to; e++) {
+            for (int i = 0; i < layerCount; i++) {
+                Layer layer = layer(i);
+                for (long index : hashStrategy.indexes(elements.get(e), layer.numberOfHashFunctions, layer.size)) {
+                    args.add(String.valueOf(index));
+                }
+            }
+        }
+        return args;
+    }
+
+    private int elementsPerBatch(int layerCount) {
+        int width = 0;
+        for (int i = 0; i < layerCount; i++) {
+            width += layer(i).numberOfHashFunctions;
+        }
+        return Math.max(1, batchSize / width);
+    }
+
+    private List<byte[]> bytes(Collection<? extends E> c) {
+        List<byte[]> bytes = new ArrayList<>(c.size());
+        for (E element : c) {
+            bytes.add(element.toString().getBytes(charset));
+        }
+        return bytes;
+    }
+
+    private Layer layer(int index) {
+        synchronized (layerSettings) {
+            while (layerSettings.size() <= index) {
+                int i = layerSettings.size();
+                long capacity = (long) Math.ceil(initialCapacity * Math.pow(growthFactor, i));
+                double probability = falsePositiveProbability * (1 - tighteningRatio) * Math.pow(tighteningRatio, i);
+                layerSettings.add(new Layer(capacity, probability));
+            }
+            return layerSettings.get(index);
+        }
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize 最多向一次EVALSHA传入的下标个数
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * 一层的参数，计算方式与RedisBloomFilter相同
+     */
+    private static final class Layer {
+
+        private final long capacity;
+
+        private final int numberOfHashFunctions;
+
+        private final long size;
+
+        private Layer(long capacity, double falsePositiveProbability) {
+            this.numberOfHashFunctions = (int) Math.ceil(-(Math.log(falsePositiveProbability) / Math.log(2))); // k = ceil(-ln(f)/ln2)
+            // 超过redis位图上限时按上限建层，减小该层容量以保持容错率，之后继续扩容
+            this.capacity = Math.min(capacity, (long) (RedisBloomFilter.MAX_SIZE * Math.log(2) / numberOfHashFunctions));
+            this.size = Math.min(RedisBloomFilter.MAX_SIZE, (long) Math.ceil(numberOfHashFunctions * (double) this.capacity / Math.log(2))); // m = ceil(kn/ln2)
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.lizhi.service.impl;
+
+import com.lizhi.service.IRedisBloomFilter;
+import com.lizhi.service.IRedisService;
+import com.lizhi.utils.Murmur3HashStrategy;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * 分片的布隆过滤，把一个过滤器的位空间分到numberOfShards个子key上
+ * <p>
+ * 子key为 key:0 ... key:(numberOfShards-1)，不使用hash tag，集群模式下分布在不同的slot/节点上，
+ * 单个节点不再承担整个过滤器的内存和流量。
+ * 元素所在的分片由元素本身的哈希（与位下标使用不同的种子）决定，元素的k个位都在同一个分片中，
+ * 所以add/contains仍然只访问一个key、一次调用。
+ * 批量操作先按分片分组，每个分片一次管道/脚本调用，各分片在本过滤器自己的线程池里并行执行
+ * （调用线程执行其中一个分片），不占用公共的ForkJoinPool；线程数为 min(分片数, parallelism)，空闲时回收。
+ *
+ * @param <E>
+ */
+public class ShardedRedisBloomFilter<E> implements IRedisBloomFilter<E> {
+
+    /**
+     * 选择分片的哈希种子，与计算位下标的哈希相互独立
+     */
+    private static final int SHARD_SEED = 0x5bd1e995;
+
+    private static final int DEFAULT_PARALLELISM = 8;
+
+    private final Charset charset = Charset.forName("UTF-8");
+
+    /**
+     * 每个分片使用的过滤器，所有分片大小相同
+     */
+    private final RedisBloomFilter<E> shardFilter;
+
+    private final int numberOfShards;
+
+    private final ExecutorService executor;
+
+    /**
+     * @param shardFilter    每个分片使用的过滤器，容量应为总容量/numberOfShards
+     * @param numberOfShards 分片数
+     */
+    public ShardedRedisBloomFilter(RedisBloomFilter<E> shardFilter, int numberOfShards) {
+        this(shardFilter, numberOfShards, DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * @param shardFilter    每个分片使用的过滤器，容量应为总容量/numberOfShards
+     * @param numberOfShards 分片数
+     * @param parallelism    批量操作最多同时占用的连接数（含调用线程）
+     */
+    public ShardedRedisBloomFilter(RedisBloomFilter<E> shardFilter, int numberOfShards, int parallelism) {
+        if (numberOfShards <= 0) {
+            throw new IllegalArgumentException("numberOfShards must be positive");
+        }
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        this.shardFilter = shardFilter;
+        this.numberOfShards = numberOfShards;
+        int threads = Math.max(1, Math.min(numberOfShards, parallelism) - 1);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "bloom-filter-shard");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        this.executor = executor;
+    }
+
+    @Override
+    public void setRedisService(IRedisService redisService) {
+        shardFilter.setRedisService(redisService);
+    }
+
+    @Override
+    public void init(String key, long expireTime, TimeUnit timeUnit) {
+        for (int i = 0; i < numberOfShards; i++) {
+            shardFilter.init(shardKey(key, i), expireTime, timeUnit);
+        }
+    }
+
+    @Override
+    public void init(String key) {
+        for (int i = 0; i < numberOfShards; i++) {
+            shardFilter.init(shardKey(key, i));
+        }
+    }
+
+    @Override
+    public void add(String key, E element) {
+        shardFilter.add(shardKey(key, element), element);
+    }
+
+    @Override
+    public void addAll(String key, Collection<? extends E> c) {
+        forEachShard(group(key, c), (shardKey, group) -> shardFilter.addAll(shardKey, group.elements));
+    }
+
+    @Override
+    public boolean contains(String key, E element) {
+        return shardFilter.contains(shardKey(key, element), element);
+    }
+
+    @Override
+    public boolean containsAll(String key, Collection<? extends E> c) {
+        for (boolean present : containsEach(key, c)) {
+            if (!present) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean[] containsEach(String key, Collection<? extends E> c) {
+        boolean[] result = new boolean[c.size()];
+        forEachShard(group(key, c), (shardKey, group) -> {
+            boolean[] shardResult = shardFilter.containsEach(shardKey, group.elements);
+            // 每个分片写入不同的位置，join之后对调用线程可见
+            for (int i = 0; i < shardResult.length; i++) {
+                result[group.positions.get(i)] = shardResult[i];
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 第一个分片在调用线程执行，其余分片提交到线程池，全部完成后返回
+     */
+    private void forEachShard(Map<String, Group<E>> groups, BiConsumer<String, Group<E>> action) {
+        List<CompletableFuture<Void>> futures = new ArrayList<>(groups.size());
+        Map.Entry<String, Group<E>> first = null;
+        for (Map.Entry<String, Group<E>> shard : groups.entrySet()) {
+            if (first == null) {
+                first = shard;
+            } else {
+                futures.add(CompletableFuture.runAsync(() -> action.accept(shard.getKey(), shard.getValue()), executor));
+            }
+        }
+        if (first != null) {
+            action.accept(first.getKey(), first.getValue());
+        }
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 按分片分组，同时记录每个元素在原集合中的位置
+     */
+    private Map<String, Group<E>> group(String key, Collection<? extends E> c) {
+        Map<String, Group<E>> groups = new LinkedHashMap<>();
+        int position = 0;
+        for (E element : c) {
+            Group<E> group = groups.computeIfAbsent(shardKey(key, element), k -> new Group<>());
+            group.elements.add(element);
+            group.positions.add(position++);
+        }
+        return groups;
+    }
+
+    private String shardKey(String key, E element) {
+        long hash = Murmur3HashStrategy.hash64(element.toString().getBytes(charset), SHARD_SEED);
+        return shardKey(key, (int) ((hash & Long.MAX_VALUE) % numberOfShards));
+    }
+
+    private static String shardKey(String key, int shard) {
+        return key + ":" + shard;
+    }
+
+    public int getNumberOfShards() {
+        return numberOfShards;
+    }
+
+    private static final class Group<E> {
+
+        private final List<E> elements = new ArrayList<>();
+
+        private final List<Integer> positions = new ArrayList<>();
+    }
+}
@@ -0,0 +1,212 @@
+package com.lizhi.service.impl;
+
+import com.lizhi.service.IRedisBloomFilter;
+import com.lizhi.service.IRedisService;
+import com.lizhi.utils.HashStrategy;
+import com.lizhi.utils.Murmur3HashStrategy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 滑动窗口布隆过滤，用于对事件流在一个时间窗口内去重
+ * <p>
+ * 时间被切分为长度为 window / generations 的代，每一代是一个独立的位图 {key}:代编号，
+ * add只写当前代，contains在一次EVALSHA中依次检查当前代及之前的generations代，
+ * 所以一个元素在add之后至少被记住window时长，最多window + 一代的时长。
+ * <p>
+ * 每一代的位图在第一次写入时设置绝对失效时间（PEXPIREAT），过期后由redis自动删除，不需要重建；
+ * 切换到新的一代时旧的几代仍在查询范围内，不会出现集中的假阴性。
+ * 所有代使用hash tag，集群模式下在同一个slot。
+ *
+ * @param <E>
+ */
+public class WindowedRedisBloomFilter<E> implements IRedisBloomFilter<E> {
+
+    /**
+     * KEYS[1]为当前代，ARGV[1]为当前代的失效时间点（毫秒），其后为下标
+     */
+    private static final String ADD_LUA;
+
+    /**
+     * KEYS为各代（从新到旧），ARGV[1]为每个元素的下标个数，其后依次为每个元素的下标，返回每个元素的结果
+     */
+    private static final String CONTAINS_EACH_LUA;
+
+    static {
+        StringBuilder sb = new StringBuilder();
+        sb.append("for i = 2, #ARGV do ");
+        sb.append("    redis.call('setbit', KEYS[1], ARGV[i], 1) ");
+        sb.append("end ");
+        sb.append("if redis.call('pttl', KEYS[1]) == -1 then ");
+        sb.append("    redis.call('pexpireat', KEYS[1], ARGV[1]) ");
+        sb.append("end ");
+        sb.append("return 1 ");
+        ADD_LUA = sb.toString();
+
+        sb = new StringBuilder();
+        sb.append("local k = tonumber(ARGV[1]) ");
+        sb.append("local result = {} ");
+        sb.append("for i = 2, #ARGV, k do ");
+        sb.append("    local present = 0 ");
+        sb.append("    for _, key in ipairs(KEYS) do ");
+        sb.append("        local all = 1 ");
+        sb.append("        for j = i, i + k - 1 do ");
+        sb.append("            if redis.call('getbit', key, ARGV[j]) == 0 then ");
+        sb.append("                all = 0 ");
+        sb.append("                break ");
+        sb.append("            end ");
+        sb.append("        end ");
+        sb.append("        if all == 1 then ");
+        sb.append("            present = 1 ");
+        sb.append("            break ");
+        sb.append("        end ");
+        sb.append("    end ");
+        sb.append("    result[#result + 1] = present ");
+        sb.append("end ");
+        sb.append("return result ");
+        CONTAINS_EACH_LUA = sb.toString();
+    }
+
+    private IRedisService redisService;
+
+    /**
+     * 每一代的过滤器参数，只用于计算下标
+     */
+    private final RedisBloomFilter<E> generation;
+
+    private final int generations;
+
+    private final long generationMillis;
+
+    /**
+     * @param falsePositiveProbability 每一代的容错率
+     * @param expectedNumberOfElements 每一代的容量
+     * @param window                   窗口长度
+     * @param timeUnit                 单位
+     * @param generations              窗口内的代数
+     */
+    public WindowedRedisBloomFilter(double falsePositiveProbability, long expectedNumberOfElements, long window, TimeUnit timeUnit, int generations) {
+        this(falsePositiveProbability, expectedNumberOfElements, window, timeUnit, generations, Murmur3HashStrategy.INSTANCE);
+    }
+
+    public WindowedRedisBloomFilter(double falsePositiveProbability, long expectedNumberOfElements, long window, TimeUnit timeUnit,
+                                    int generations, HashStrategy hashStrategy) {
+        if (generations <= 0) {
+            throw new IllegalArgumentException("generations must be positive");
+        }
+        this.generation = new RedisBloomFilter<>(falsePositiveProbability, expectedNumberOfElements, hashStrategy);
+        this.generations = generations;
+        this.generationMillis = Math.max(1, timeUnit.toMillis(window) / generations);
+    }
+
+    @Override
+    public void setRedisService(IRedisService redisService) {
+        this.redisService = redisService;
+    }
+
+    /**
+     * 各代的失效时间由窗口决定，不需要初始化
+     */
+    @Override
+    public void init(String key, long expireTime, TimeUnit timeUnit) {
+    }
+
+    /**
+     * 各代的失效时间由窗口决定，不需要初始化
+     */
+    @Override
+    public void init(String key) {
+    }
+
+    @Override
+    public void add(String key, E element) {
+        add(key, generation.indexes(element));
+    }
+
+    @Override
+    public void addAll(String key, Collection<? extends E> c) {
+        long[][] hashed = generation.indexes(c);
+        int elementsPerBatch = generation.elementsPerBatch();
+        for (int from = 0; from < hashed.length; from += elementsPerBatch) {
+            add(key, RedisBloomFilter.concat(hashed, from, Math.min(from + elementsPerBatch, hashed.length)));
+        }
+    }
+
+    @Override
+    public boolean contains(String key, E element) {
+        return containsEach(key, new long[][]{generation.indexes(element)}, 0, 1)[0];
+    }
+
+    @Override
+    public boolean containsAll(String key, Collection<? extends E> c) {
+        for (boolean present : containsEach(key, c)) {
+            if (!present) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean[] containsEach(String key, Collection<? extends E> c) {
+        long[][] hashed = generation.indexes(c);
+        boolean[] result = new boolean[hashed.length];
+        int elementsPerBatch = generation.elementsPerBatch();
+        for (int from = 0; from < hashed.length; from += elementsPerBatch) {
+            int to = Math.min(from + elementsPerBatch, hashed.length);
+            boolean[] batch = containsEach(key, hashed, from, to);
+            System.arraycopy(batch, 0, result, from, batch.length);
+        }
+        return result;
+    }
+
+    private void add(String key, long[] indexes) {
+        long current = System.currentTimeMillis() / generationMillis;
+        // 当前代在第generations代之后离开窗口，再多保留一代作为余量
+        long expireAt = (current + generations + 2) * generationMillis;
+        List<String> args = new ArrayList<>(indexes.length + 1);
+        args.add(String.valueOf(expireAt));
+        for (long index : indexes) {
+            args.add(String.valueOf(index));
+        }
+        List<String> keys = new ArrayList<>(1);
+        keys.add(generationKey(key, current));
+        redisService.eval(ADD_LUA, keys, args);
+    }
+
+    private boolean[] containsEach(String key, long[][] hashed, int from, int to) {
+        long current = System.currentTimeMillis() / generationMillis;
+        List<String> keys = new ArrayList<>(generations + 1);
+        for (long id = current; id >= current - generations; id--) {
+            keys.add(generationKey(key, id));
+        }
+        List<String> args = new ArrayList<>(1 + (to - from) * generation.getNumberOfHashFunctions());
+        args.add(String.valueOf(generation.getNumberOfHashFunctions()));
+        for (int i = from; i < to; i++) {
+            for (long index : hashed[i]) {
+                args.add(String.valueOf(index));
+            }
+        }
+        List<?> results = (List<?>) redisService.eval(CONTAINS_EACH_LUA, keys, args);
+        boolean[] result = new boolean[to - from];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (Long) results.get(i) > 0;
+        }
+        return result;
+    }
+
+    private static String generationKey(String key, long id) {
+        return "{" + key + "}:" + id;
+    }
+
+    public int getGenerations() {
+        return generations;
+    }
+
+    public long getGenerationMillis() {
+        return generationMillis;
+    }
+}
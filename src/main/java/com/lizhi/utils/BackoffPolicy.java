@@ -0,0 +1,15 @@
+package com.lizhi.utils;
+
+/**
+ * 重试等待策略
+ * 实现类不保存状态，上一次的等待时间由RetryTemplate传入，同一个实例可以被多个线程共用
+ */
+public interface BackoffPolicy {
+
+    /**
+     * @param attempt            已经失败的次数，从1开始
+     * @param previousWaitMillis 上一次的等待时间ms，第一次为0
+     * @return 本次等待时间ms（从本次尝试开始算起）
+     */
+    long nextWaitMillis(int attempt, long previousWaitMillis);
+}
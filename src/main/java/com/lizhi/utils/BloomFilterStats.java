@@ -0,0 +1,79 @@
+package com.lizhi.utils;
+
+/**
+ * 布隆过滤的饱和度统计，由BITCOUNT得到的置位数估算
+ * <p>
+ * 填充率 X/m，估算元素数 n ≈ -(m/k)·ln(1 - X/m)，实际容错率 ≈ (X/m)^k
+ */
+public class BloomFilterStats {
+
+    private final String key;
+
+    private final long sizeOfBloomFilter;
+
+    private final int numberOfHashFunctions;
+
+    private final long expectedNumberOfElements;
+
+    private final long setBits;
+
+    public BloomFilterStats(String key, long sizeOfBloomFilter, int numberOfHashFunctions, long expectedNumberOfElements, long setBits) {
+        this.key = key;
+        this.sizeOfBloomFilter = sizeOfBloomFilter;
+        this.numberOfHashFunctions = numberOfHashFunctions;
+        this.expectedNumberOfElements = expectedNumberOfElements;
+        this.setBits = setBits;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getSizeOfBloomFilter() {
+        return sizeOfBloomFilter;
+    }
+
+    public int getNumberOfHashFunctions() {
+        return numberOfHashFunctions;
+    }
+
+    public long getExpectedNumberOfElements() {
+        return expectedNumberOfElements;
+    }
+
+    public long getSetBits() {
+        return setBits;
+    }
+
+    /**
+     * @return 置位比例
+     */
+    public double getFillRatio() {
+        return (double) setBits / sizeOfBloomFilter;
+    }
+
+    /**
+     * @return 估算的已插入元素数，位图全满时为Long.MAX_VALUE
+     */
+    public long getEstimatedNumberOfElements() {
+        double fillRatio = getFillRatio();
+        if (fillRatio >= 1) {
+            return Long.MAX_VALUE;
+        }
+        return Math.round(-((double) sizeOfBloomFilter / numberOfHashFunctions) * Math.log(1 - fillRatio));
+    }
+
+    /**
+     * @return 按当前填充率估算的实际容错率
+     */
+    public double getFalsePositiveProbability() {
+        return Math.pow(getFillRatio(), numberOfHashFunctions);
+    }
+
+    @Override
+    public String toString() {
+        return "BloomFilterStats{key='" + key + "', size=" + sizeOfBloomFilter + ", setBits=" + setBits
+                + ", estimatedNumberOfElements=" + getEstimatedNumberOfElements() + "/" + expectedNumberOfElements
+                + ", falsePositiveProbability=" + getFalsePositiveProbability() + '}';
+    }
+}
@@ -0,0 +1,9 @@
+package com.lizhi.utils;
+
+/**
+ * 布隆过滤饱和度回调，每次统计后调用，可用于上报监控指标或告警
+ */
+public interface BloomFilterStatsListener {
+
+    void onStats(BloomFilterStats stats);
+}
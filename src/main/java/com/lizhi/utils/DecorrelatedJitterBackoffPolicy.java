@@ -0,0 +1,29 @@
+package com.lizhi.utils;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 去相关抖动：random(base, previous * 3)，不超过cap
+ * 每个客户端的等待序列互不相关，不会像固定间隔那样同一时刻一起打到redis
+ */
+public class DecorrelatedJitterBackoffPolicy implements BackoffPolicy {
+
+    private final long baseMillis;
+
+    private final long capMillis;
+
+    public DecorrelatedJitterBackoffPolicy(long baseMillis, long capMillis) {
+        if (baseMillis <= 0 || capMillis < baseMillis) {
+            throw new IllegalArgumentException("require 0 < baseMillis <= capMillis");
+        }
+        this.baseMillis = baseMillis;
+        this.capMillis = capMillis;
+    }
+
+    @Override
+    public long nextWaitMillis(int attempt, long previousWaitMillis) {
+        long upper = Math.max(previousWaitMillis, baseMillis) * 3;
+        long wait = ThreadLocalRandom.current().nextLong(baseMillis, upper + 1);
+        return Math.min(capMillis, wait);
+    }
+}
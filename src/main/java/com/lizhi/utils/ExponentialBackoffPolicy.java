@@ -0,0 +1,39 @@
+package com.lizhi.utils;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 指数退避：initial * multiplier^(attempt-1)，不超过max
+ * jitter时在[0, 计算值]之间取随机数（full jitter），避免大量客户端同时失败后又同时重试
+ */
+public class ExponentialBackoffPolicy implements BackoffPolicy {
+
+    private final long initialMillis;
+
+    private final double multiplier;
+
+    private final long maxMillis;
+
+    private final boolean jitter;
+
+    public ExponentialBackoffPolicy(long initialMillis, long maxMillis) {
+        this(initialMillis, 2, maxMillis, true);
+    }
+
+    public ExponentialBackoffPolicy(long initialMillis, double multiplier, long maxMillis, boolean jitter) {
+        if (initialMillis <= 0 || multiplier < 1 || maxMillis < initialMillis) {
+            throw new IllegalArgumentException("require 0 < initialMillis <= maxMillis and multiplier >= 1");
+        }
+        this.initialMillis = initialMillis;
+        this.multiplier = multiplier;
+        this.maxMillis = maxMillis;
+        this.jitter = jitter;
+    }
+
+    @Override
+    public long nextWaitMillis(int attempt, long previousWaitMillis) {
+        double wait = initialMillis * Math.pow(multiplier, attempt - 1);
+        long capped = wait >= maxMillis ? maxMillis : (long) wait;
+        return jitter ? ThreadLocalRandom.current().nextLong(capped + 1) : capped;
+    }
+}
@@ -0,0 +1,39 @@
+package com.lizhi.utils;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 固定间隔，RetryTemplate原来的行为
+ * jitter大于0时在 waitMillis * (1 ± jitter) 之间随机，平均间隔不变，同时失败的客户端不会按相同节奏一起重试
+ */
+public class FixedBackoffPolicy implements BackoffPolicy {
+
+    private final long waitMillis;
+
+    private final double jitter;
+
+    public FixedBackoffPolicy(long waitMillis) {
+        this(waitMillis, 0);
+    }
+
+    /**
+     * @param waitMillis 平均间隔ms
+     * @param jitter     上下浮动的比例，0到1之间
+     */
+    public FixedBackoffPolicy(long waitMillis, double jitter) {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter must be between 0 and 1");
+        }
+        this.waitMillis = waitMillis;
+        this.jitter = jitter;
+    }
+
+    @Override
+    public long nextWaitMillis(int attempt, long previousWaitMillis) {
+        long spread = (long) (waitMillis * jitter);
+        if (spread <= 0) {
+            return waitMillis;
+        }
+        return ThreadLocalRandom.current().nextLong(waitMillis - spread, waitMillis + spread + 1);
+    }
+}
@@ -0,0 +1,17 @@
+package com.lizhi.utils;
+
+/**
+ * 布隆过滤的哈希策略：把元素映射为位数组中的若干个下标
+ * <p>
+ * 实现类必须是线程安全的，并且对同一输入始终返回相同的下标，否则已写入redis的过滤器将无法命中
+ */
+public interface HashStrategy {
+
+    /**
+     * @param data                  元素的字节
+     * @param numberOfHashFunctions 哈希函数个数，即返回的下标个数
+     * @param size                  位数组长度
+     * @return 取值范围为[0, size)的下标
+     */
+    long[] indexes(byte[] data, int numberOfHashFunctions, long size);
+}
@@ -0,0 +1,198 @@
+package com.lizhi.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 按key模式聚合的锁监控，注册为bean（或RedisDistributedLock.setMetricsRecorder）后启用，每个模式记录
+ * 加锁耗时、尝试次数、超时次数、持有时长、租期提前过期次数
+ * <p>
+ * 默认把key里的连续数字替换为*（order:123 -> order:*），避免每个订单号一份统计；模式数量超过上限后归入OTHER。
+ * 耗时都以微秒记录在LogHistogram里。用hottest(n)找出等待时间最多的锁，用持有时长的p99和leaseExpired调整租期。
+ */
+public class HistogramLockMetricsRecorder implements LockMetricsRecorder {
+
+    public static final String OTHER = "<other>";
+
+    private static final int DEFAULT_MAX_PATTERNS = 1000;
+
+    private final Function<String, String> keyPattern;
+
+    private final int maxPatterns;
+
+    private final Map<String, LockKeyMetrics> metrics = new ConcurrentHashMap<>();
+
+    public HistogramLockMetricsRecorder() {
+        this(HistogramLockMetricsRecorder::maskDigits, DEFAULT_MAX_PATTERNS);
+    }
+
+    /**
+     * @param keyPattern  key -> 统计用的模式
+     * @param maxPatterns 模式数量上限
+     */
+    public HistogramLockMetricsRecorder(Function<String, String> keyPattern, int maxPatterns) {
+        this.keyPattern = keyPattern;
+        this.maxPatterns = maxPatterns;
+    }
+
+    @Override
+    public void onAcquire(String key, boolean acquired, int attempts, long latencyNanos) {
+        LockKeyMetrics m = metrics(key);
+        m.acquireLatencyMicros.record(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+        m.attempts.record(attempts);
+        if (acquired) {
+            m.acquired.increment();
+        } else {
+            m.timeouts.increment();
+        }
+    }
+
+    @Override
+    public void onRelease(String key, long holdNanos, boolean leaseExpired) {
+        LockKeyMetrics m = metrics(key);
+        m.holdTimeMicros.record(TimeUnit.NANOSECONDS.toMicros(holdNanos));
+        if (leaseExpired) {
+            m.leaseExpired.increment();
+        }
+    }
+
+    /**
+     * @return 模式 -> 统计
+     */
+    public Map<String, LockKeyMetrics> getMetrics() {
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    /**
+     * @param n 个数
+     * @return 加锁总等待时间最多的n个模式
+     */
+    public List<LockKeyMetrics> hottest(int n) {
+        List<LockKeyMetrics> list = new ArrayList<>(metrics.values());
+        list.sort(Comparator.comparingLong((LockKeyMetrics m) -> m.acquireLatencyMicros.getSum()).reversed());
+        return list.subList(0, Math.min(n, list.size()));
+    }
+
+    /**
+     * @param n 个数
+     * @return hottest(n)的文本，每行一个模式，可以定时打到日志里
+     */
+    public String report(int n) {
+        StringBuilder sb = new StringBuilder();
+        for (LockKeyMetrics m : hottest(n)) {
+            sb.append(m).append('\n');
+        }
+        return sb.toString();
+    }
+
+    public void reset() {
+        metrics.clear();
+    }
+
+    private LockKeyMetrics metrics(String key) {
+        String pattern = keyPattern.apply(key);
+        LockKeyMetrics m = metrics.get(pattern);
+        if (m != null) {
+            return m;
+        }
+        if (metrics.size() >= maxPatterns) {
+            pattern = OTHER;
+        }
+        return metrics.computeIfAbsent(pattern, LockKeyMetrics::new);
+    }
+
+    /**
+     * 连续数字替换为*
+     */
+    static String maskDigits(String key) {
+        StringBuilder sb = null;
+        boolean inDigits = false;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            boolean digit = c >= '0' && c <= '9';
+            if (digit && sb == null) {
+                sb = new StringBuilder(key.length());
+                sb.append(key, 0, i);
+            }
+            if (sb != null) {
+                if (!digit) {
+                    sb.append(c);
+                } else if (!inDigits) {
+                    sb.append('*');
+                }
+            }
+            inDigits = digit;
+        }
+        return sb == null ? key : sb.toString();
+    }
+
+    /**
+     * 一个key模式的统计
+     */
+    public static final class LockKeyMetrics {
+
+        private final String pattern;
+
+        private final LogHistogram acquireLatencyMicros = new LogHistogram();
+
+        private final LogHistogram attempts = new LogHistogram();
+
+        private final LogHistogram holdTimeMicros = new LogHistogram();
+
+        private final LongAdder acquired = new LongAdder();
+
+        private final LongAdder timeouts = new LongAdder();
+
+        private final LongAdder leaseExpired = new LongAdder();
+
+        private LockKeyMetrics(String pattern) {
+            this.pattern = pattern;
+        }
+
+        public String getPattern() {
+            return pattern;
+        }
+
+        public LogHistogram getAcquireLatencyMicros() {
+            return acquireLatencyMicros;
+        }
+
+        public LogHistogram getAttempts() {
+            return attempts;
+        }
+
+        public LogHistogram getHoldTimeMicros() {
+            return holdTimeMicros;
+        }
+
+        public long getAcquired() {
+            return acquired.sum();
+        }
+
+        public long getTimeouts() {
+            return timeouts.sum();
+        }
+
+        public long getLeaseExpired() {
+            return leaseExpired.sum();
+        }
+
+        @Override
+        public String toString() {
+            return pattern
+                    + " acquired=" + getAcquired()
+                    + " timeouts=" + getTimeouts()
+                    + " leaseExpired=" + getLeaseExpired()
+                    + " acquireLatencyMicros[" + acquireLatencyMicros + "]"
+                    + " attempts[" + attempts + "]"
+                    + " holdTimeMicros[" + holdTimeMicros + "]";
+        }
+    }
+}
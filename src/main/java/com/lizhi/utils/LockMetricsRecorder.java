@@ -0,0 +1,40 @@
+package com.lizhi.utils;
+
+/**
+ * 锁的监控埋点
+ * 在加锁、释放的线程里同步调用，实现必须线程安全且足够轻量
+ */
+public interface LockMetricsRecorder {
+
+    /**
+     * 不记录
+     */
+    LockMetricsRecorder NOOP = new LockMetricsRecorder() {
+        @Override
+        public void onAcquire(String key, boolean acquired, int attempts, long latencyNanos) {
+        }
+
+        @Override
+        public void onRelease(String key, long holdNanos, boolean leaseExpired) {
+        }
+    };
+
+    /**
+     * 一次加锁结束
+     *
+     * @param key          锁
+     * @param acquired     是否拿到，false即超时（重试次数或时间用完）
+     * @param attempts     访问redis尝试加锁的次数，本地交接为0
+     * @param latencyNanos 从调用lock到返回的耗时ns
+     */
+    void onAcquire(String key, boolean acquired, int attempts, long latencyNanos);
+
+    /**
+     * 一次释放
+     *
+     * @param key          锁
+     * @param holdNanos    持有时长ns
+     * @param leaseExpired 释放时锁已经过期或被别人拿走（释放脚本返回0），说明租期设短了
+     */
+    void onRelease(String key, long holdNanos, boolean leaseExpired);
+}
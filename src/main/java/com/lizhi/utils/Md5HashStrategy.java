@@ -0,0 +1,80 @@
+package com.lizhi.utils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 旧版的MD5哈希策略，下标与之前版本的 RedisBloomFilter 完全一致，用于继续读写已有的过滤器
+ * <p>
+ * 每个线程持有自己的 MessageDigest，不再在一个全局摘要对象上加锁
+ */
+public final class Md5HashStrategy implements HashStrategy {
+
+    public static final Md5HashStrategy INSTANCE = new Md5HashStrategy();
+
+    private static final String HASH_NAME = "MD5";
+
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance(HASH_NAME);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(HASH_NAME + " is not supported", e);
+        }
+    });
+
+    private Md5HashStrategy() {
+    }
+
+    @Override
+    public long[] indexes(byte[] data, int numberOfHashFunctions, long size) {
+        long[] indexes = new long[numberOfHashFunctions];
+        if (size <= Integer.MAX_VALUE) {
+            // 与旧版本一致
+            int[] hashes = createHashes(data, numberOfHashFunctions);
+            for (int i = 0; i < hashes.length; i++) {
+                indexes[i] = Math.abs(hashes[i] % size);
+            }
+        } else {
+            // 32位哈希覆盖不了整个位数组，每两个int拼成一个64位哈希
+            int[] hashes = createHashes(data, numberOfHashFunctions * 2);
+            for (int i = 0; i < numberOfHashFunctions; i++) {
+                long hash = ((long) hashes[2 * i] << 32) | (hashes[2 * i + 1] & 0xFFFFFFFFL);
+                indexes[i] = (hash & Long.MAX_VALUE) % size;
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Generates digests based on the contents of an array of bytes and splits the result into 4-byte int's and store them in an array. The
+     * digest function is called until the required number of int's are produced. For each call to digest a salt
+     * is prepended to the data. The salt is increased by 1 for each call.
+     *
+     * @param data   specifies input data.
+     * @param hashes number of hashes/int's to produce.
+     * @return array of int-sized hashes
+     */
+    public static int[] createHashes(byte[] data, int hashes) {
+        MessageDigest digestFunction = DIGEST.get();
+        int[] result = new int[hashes];
+
+        int k = 0;
+        byte salt = 0;
+        while (k < hashes) {
+            digestFunction.update(salt);
+            salt++;
+            byte[] digest = digestFunction.digest(data);
+
+            for (int i = 0; i < digest.length / 4 && k < hashes; i++) {
+                int h = 0;
+                for (int j = (i * 4); j < (i * 4) + 4; j++) {
+                    h <<= 8;
+                    h |= ((int) digest[j]) & 0xFF;
+                }
+                result[k] = h;
+                k++;
+            }
+        }
+        return result;
+    }
+}
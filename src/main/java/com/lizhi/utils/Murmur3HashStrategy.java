@@ -0,0 +1,169 @@
+package com.lizhi.utils;
+
+/**
+ * 默认哈希策略：MurmurHash3 x64_128 得到两个64位哈希 h1、h2，
+ * 再用 Kirsch–Mitzenmacher 双重哈希 h1 + i * h2 派生出全部下标
+ * <p>
+ * 每个元素只哈希一次，不分配中间对象，也没有共享的可变状态，可以被任意线程并发使用
+ */
+public final class Murmur3HashStrategy implements HashStrategy {
+
+    public static final Murmur3HashStrategy INSTANCE = new Murmur3HashStrategy();
+
+    private static final long C1 = 0x87c37b91114253d5L;
+
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private Murmur3HashStrategy() {
+    }
+
+    @Override
+    public long[] indexes(byte[] data, int numberOfHashFunctions, long size) {
+        long[] indexes = new long[numberOfHashFunctions];
+        hash(data, 0, indexes, size);
+        return indexes;
+    }
+
+    /**
+     * @param data 数据
+     * @param seed 种子
+     * @return MurmurHash3 x64_128 的低64位
+     */
+    public static long hash64(byte[] data, int seed) {
+        return hash(data, seed, null, 0);
+    }
+
+    /**
+     * 计算 MurmurHash3 x64_128，indexes 不为空时顺带用双重哈希填充下标
+     *
+     * @return 128位结果的低64位
+     */
+    @SuppressWarnings("fallthrough")// 尾部按剩余字节数逐个case向下累加
+    private static long hash(byte[] data, int seed, long[] indexes, long size) {
+        long h1 = seed;
+        long h2 = seed;
+        int length = data.length;
+        int blocks = length >>> 4;
+        for (int i = 0; i < blocks; i++) {
+            long k1 = getLong(data, i << 4);
+            long k2 = getLong(data, (i << 4) + 8);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        int tail = blocks << 4;
+        long k1 = 0;
+        long k2 = 0;
+        switch (length & 15) {
+            case 15:
+                k2 ^= (long) (data[tail + 14] & 0xff) << 48;
+                // fall through
+            case 14:
+                k2 ^= (long) (data[tail + 13] & 0xff) << 40;
+                // fall through
+            case 13:
+                k2 ^= (long) (data[tail + 12] & 0xff) << 32;
+                // fall through
+            case 12:
+                k2 ^= (long) (data[tail + 11] & 0xff) << 24;
+                // fall through
+            case 11:
+                k2 ^= (long) (data[tail + 10] & 0xff) << 16;
+                // fall through
+            case 10:
+                k2 ^= (long) (data[tail + 9] & 0xff) << 8;
+                // fall through
+            case 9:
+                k2 ^= (long) (data[tail + 8] & 0xff);
+                h2 ^= mixK2(k2);
+                // fall through
+            case 8:
+                k1 ^= (long) (data[tail + 7] & 0xff) << 56;
+                // fall through
+            case 7:
+                k1 ^= (long) (data[tail + 6] & 0xff) << 48;
+                // fall through
+            case 6:
+                k1 ^= (long) (data[tail + 5] & 0xff) << 40;
+                // fall through
+            case 5:
+                k1 ^= (long) (data[tail + 4] & 0xff) << 32;
+                // fall through
+            case 4:
+                k1 ^= (long) (data[tail + 3] & 0xff) << 24;
+                // fall through
+            case 3:
+                k1 ^= (long) (data[tail + 2] & 0xff) << 16;
+                // fall through
+            case 2:
+                k1 ^= (long) (data[tail + 1] & 0xff) << 8;
+                // fall through
+            case 1:
+                k1 ^= (long) (data[tail] & 0xff);
+                h1 ^= mixK1(k1);
+                break;
+            default:
+                break;
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+
+        if (indexes != null) {
+            long combined = h1;
+            for (int i = 0; i < indexes.length; i++) {
+                indexes[i] = (combined & Long.MAX_VALUE) % size;
+                combined += h2;
+            }
+        }
+        return h1;
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        return (data[offset] & 0xffL)
+                | (data[offset + 1] & 0xffL) << 8
+                | (data[offset + 2] & 0xffL) << 16
+                | (data[offset + 3] & 0xffL) << 24
+                | (data[offset + 4] & 0xffL) << 32
+                | (data[offset + 5] & 0xffL) << 40
+                | (data[offset + 6] & 0xffL) << 48
+                | (data[offset + 7] & 0xffL) << 56;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        return k1;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        return k2;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
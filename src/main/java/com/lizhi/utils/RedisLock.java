@@ -18,6 +18,12 @@ public @interface RedisLock {
     /** 锁的资源，redis的key*/
     String value() default "default";
 
+    /** SpEL表达式生成的key，如 "'order:' + #orderId"，参数可以用参数名、#p0、#a0引用；设置后忽略value，每个方法只解析一次*/
+    String key() default "";
+
+    /** 同时锁多个key（SpEL表达式，规则同key），全部拿到或者一个都不拿，如 {"'account:' + #from", "'account:' + #to"}；设置后忽略key、value和锁类型*/
+    String[] keys() default {};
+
     /** 持锁时间,单位毫秒*/
     long keepMills() default 30000;
 
@@ -36,4 +42,28 @@ public @interface RedisLock {
 
     /** 重试次数*/
     int retryTimes() default 5;
+
+    /** 最长等待时间,单位毫秒；不小于0时按时限重试（间隔在sleepMills上下随机）并忽略retryTimes，设置GIVEUP忽略此项*/
+    long timeoutMills() default -1;
+
+    /** 持锁期间自动续期，keepMills作为租期，可以设得较短以便进程挂掉后锁尽快过期*/
+    boolean autoRenew() default false;
+
+    /** 使用可重入锁，同一线程嵌套加同一把锁不会等待*/
+    boolean reentrant() default false;
+
+    /** 使用公平锁，按到达顺序加锁，锁释放时只通知队首*/
+    boolean fair() default false;
+
+    /** 锁模式，READ/WRITE使用读写锁，此时忽略reentrant、fair（读写锁本身可重入）*/
+    LockMode mode() default LockMode.EXCLUSIVE;
+
+    public enum LockMode{
+        /** 独占锁 */
+        EXCLUSIVE,
+        /** 读锁，读读共享 */
+        READ,
+        /** 写锁，与读锁、写锁互斥 */
+        WRITE;
+    }
 }
\ No newline at end of file
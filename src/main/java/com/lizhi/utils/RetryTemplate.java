@@ -3,6 +3,9 @@ package com.lizhi.utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * @author https://github.com/lizhixiong1994
  * @Date 2019-02-28
@@ -13,22 +16,92 @@ public class RetryTemplate {
 
     private static final int DEFAULT_WAIT_TIME = 1000;
 
-    private long waitTime = DEFAULT_WAIT_TIME;
+    /**
+     * 加锁重试间隔的浮动比例
+     */
+    private static final double LOCK_JITTER = 0.5;
+
+    /**
+     * 放弃重试的WARN日志最多每隔这么久打一次，期间的失败次数合并到下一条日志
+     */
+    private static final long FAILURE_LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private static final AtomicLong lastFailureLogNanos = new AtomicLong(System.nanoTime() - FAILURE_LOG_INTERVAL_NANOS);
+
+    private static final AtomicLong suppressedFailures = new AtomicLong();
 
     private int retryTimes = DEFAULT_RETRY_TIMES;
 
+    private BackoffPolicy backoffPolicy = new FixedBackoffPolicy(DEFAULT_WAIT_TIME);
+
+    /**
+     * 总时长上限ns，负数表示只受重试次数限制
+     */
+    private long deadlineNanos = -1;
+
     private static final Logger LOGGER = LoggerFactory.getLogger(RetryTemplate.class);
 
     public RetryTemplate() {
     }
 
     public RetryTemplate(long waitTime) {
-        this.waitTime = waitTime;
+        this.backoffPolicy = new FixedBackoffPolicy(waitTime);
     }
 
     public RetryTemplate(int retryTimes ,long waitTime) {
         this.retryTimes = retryTimes;
-        this.waitTime = waitTime;
+        this.backoffPolicy = new FixedBackoffPolicy(waitTime);
+    }
+
+    /**
+     * 设置等待策略，替换构造方法里的固定间隔
+     * @param backoffPolicy 固定、指数退避、去相关抖动等
+     * @return this
+     */
+    public RetryTemplate withBackoff(BackoffPolicy backoffPolicy) {
+        this.backoffPolicy = backoffPolicy;
+        return this;
+    }
+
+    /**
+     * 设置总时长上限（按System.nanoTime计算，不受系统时间调整影响），到期后不再重试
+     * 与重试次数同时生效，先到为准；只限时不限次数时把retryTimes设为Integer.MAX_VALUE
+     * @param timeout 总时长，负数表示不限时
+     * @param unit 单位
+     * @return this
+     */
+    public RetryTemplate withDeadline(long timeout, TimeUnit unit) {
+        this.deadlineNanos = timeout < 0 ? -1 : Math.max(unit.toNanos(timeout), 1);
+        return this;
+    }
+
+    /**
+     * 加锁重试的默认配置：间隔在waitMillis上下浮动50%，大量客户端同时失败后不会一起重试；总时长不超过timeoutMillis
+     * @param waitMillis 平均间隔ms
+     * @param timeoutMillis 总时长ms，负数表示不限时
+     * @return this
+     */
+    public RetryTemplate forLock(long waitMillis, long timeoutMillis) {
+        return withBackoff(new FixedBackoffPolicy(waitMillis, LOCK_JITTER)).withDeadline(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 按重试次数换算的总等待时长，用作按次数重试时的时限
+     * @param retryTimes 重试次数
+     * @param waitMillis 间隔ms
+     * @return (retryTimes - 1) * waitMillis，不限次数、间隔不大于0或者溢出时为-1（不限时）
+     */
+    public static long totalWaitMillis(int retryTimes, long waitMillis) {
+        if (retryTimes == Integer.MAX_VALUE || waitMillis <= 0) {
+            return -1;
+        }
+        if (retryTimes <= 1) {
+            return 0;
+        }
+        if (Long.MAX_VALUE / waitMillis < retryTimes - 1) {
+            return -1;
+        }
+        return (retryTimes - 1) * waitMillis;
     }
 
     /**
@@ -38,43 +111,78 @@ public class RetryTemplate {
      * @return null表示失败
      */
     public <T> T execute(RetryCallBack<T> callBack) {
+        final long begin = System.nanoTime();
+        final long deadline = begin + deadlineNanos;
         int executeRetryTimes = 0;
-        int defaultRetryTimes = this.retryTimes;
-        final long waitTime = this.waitTime;
-        long start = 0;
-        long stop = 0;
+        long waitTime = 0;
+        long start;
         long waitLeft;
         T result;
-        do {
+        while (true) {
             executeRetryTimes++;
-            start = System.currentTimeMillis();
+            start = System.nanoTime();
             result = callBack.doWithRetry();
             if (callBack.isComplete(result)) {
                 callbackSucceeded(result);
+                if (executeRetryTimes > 1 && LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("{} succeeded after [{}] attempts, cost [{}]ms", callBack.getClass().getName(), executeRetryTimes, elapsedMillis(begin));
+                }
                 return result;
-            } else {
-                stop = System.currentTimeMillis();
-                if (waitTime > 0) {
-                    waitLeft = waitTime - (stop - start);
-                    if (waitLeft > 0) {
-                        try {
-                            Thread.sleep(waitLeft);
-                        } catch (InterruptedException e) {
-                            callBackFailedByInterrupted();
-                            throw new RuntimeException("Retry failed interrupted while waiting", e);
-                        }
-                    }else {
-                        //
-                        LOGGER.info("Retry executing time is out [{}]ms",waitTime);
-                    }
+            }
+            if (executeRetryTimes >= retryTimes) {
+                break;
+            }
+            waitTime = backoffPolicy.nextWaitMillis(executeRetryTimes, waitTime);
+            waitLeft = waitTime - elapsedMillis(start);
+            if (deadlineNanos >= 0) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    break;
+                }
+                waitLeft = Math.min(waitLeft, remaining);
+            }
+            if (waitLeft > 0) {
+                try {
+                    waitForRetry(waitLeft);
+                } catch (InterruptedException e) {
+                    callBackFailedByInterrupted();
+                    throw new RuntimeException("Retry failed interrupted while waiting", e);
                 }
-                LOGGER.warn(callBack.getClass().getName() + "retry:[{}]times,cast [{}]ms", executeRetryTimes,System.currentTimeMillis() - start);
             }
-        } while (executeRetryTimes < defaultRetryTimes);
+        }
         callbackFailed();
+        logFailure(callBack, executeRetryTimes, elapsedMillis(begin));
         return null;
     }
 
+    /**
+     * 竞争激烈时大量调用会同时放弃，日志按时间间隔合并，不逐次打印
+     */
+    private static void logFailure(RetryCallBack<?> callBack, int attempts, long costMillis) {
+        long now = System.nanoTime();
+        long last = lastFailureLogNanos.get();
+        if (now - last >= FAILURE_LOG_INTERVAL_NANOS && lastFailureLogNanos.compareAndSet(last, now)) {
+            LOGGER.warn("{} gave up after [{}] attempts, cost [{}]ms, [{}] more retries gave up in the last [{}]s",
+                    callBack.getClass().getName(), attempts, costMillis, suppressedFailures.getAndSet(0),
+                    TimeUnit.NANOSECONDS.toSeconds(now - last));
+        } else {
+            suppressedFailures.incrementAndGet();
+        }
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * 两次重试之间的等待，默认sleep，子类可以改为等待通知（提前返回即提前重试）
+     * @param millis 最长等待时间ms
+     * @throws InterruptedException
+     */
+    public void waitForRetry(long millis) throws InterruptedException {
+        Thread.sleep(millis);
+    }
+
     public void callBackFailedByInterrupted() {
     }
 